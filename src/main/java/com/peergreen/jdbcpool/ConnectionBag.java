@@ -0,0 +1,714 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static com.peergreen.jdbcpool.JManagedConnection.STATE_IN_USE;
+import static com.peergreen.jdbcpool.JManagedConnection.STATE_NOT_IN_USE;
+import static com.peergreen.jdbcpool.JManagedConnection.STATE_REMOVED;
+import static com.peergreen.jdbcpool.JManagedConnection.STATE_RESERVED;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+/**
+ * Concurrent bag of the JManagedConnection of a pool. Idle connections are
+ * claimed with a CAS on their state, so borrowing and returning a connection
+ * never takes a lock. Optionally, each thread remembers the connections it
+ * has returned and tries them first. Idle connections are taken from a deque
+ * in O(1): the most recently used first (MRU, warm statement caches) or the
+ * least recently used first (LRU, even wear of the connections).
+ * <p>
+ * The idle connections may be split in several stripes: a thread returns its
+ * connections to its home stripe and borrows from it first, then steals from
+ * the other stripes. This spreads the contention on the idle deques over the
+ * CPUs. Stripes only hold idle connections; the size of the pool is still
+ * bounded globally.
+ * <p>
+ * Threads waiting for a connection are queued in FIFO order. With the fair
+ * policy, a returned connection is handed directly to the oldest waiter. With
+ * the barging policy, it becomes idle and a waiter is woken up, but a thread
+ * arriving meanwhile may take it first.
+ */
+class ConnectionBag {
+
+    /**
+     * Logger.
+     */
+    private static Log logger = LogFactory.getLog(ConnectionBag.class);
+
+    /**
+     * Max number of connections remembered by a thread.
+     */
+    private static final int THREAD_LIST_MAX = 16;
+
+    /**
+     * Max number of idle connections looked at for a statement hint.
+     */
+    private static final int HINT_SCAN_MAX = 16;
+
+    /**
+     * Max number of stripes.
+     */
+    public static final int MAX_STRIPES = 64;
+
+    /**
+     * Distance between two idle counters, so that they don't share a cache
+     * line.
+     */
+    private static final int COUNTER_PADDING = 16;
+
+    /**
+     * Item given to a waiter when a connection has been destroyed: the waiter
+     * may now create a new one.
+     */
+    private static final Object CAPACITY_FREED = new Object();
+
+    /**
+     * Item set by a waiter which has stopped waiting.
+     */
+    private static final Object CANCELLED = new Object();
+
+    /**
+     * All connections of the pool, whatever their state, by identifier.
+     */
+    private final ConcurrentMap<Integer, JManagedConnection> registry = new ConcurrentHashMap<Integer, JManagedConnection>();
+
+    /**
+     * Number of connections in the registry.
+     */
+    private final AtomicInteger registrySize = new AtomicInteger();
+
+    /**
+     * Connections returned by the current thread, most recent last.
+     */
+    private final ThreadLocal<List<WeakReference<JManagedConnection>>> threadList =
+            new ThreadLocal<List<WeakReference<JManagedConnection>>>() {
+                @Override
+                protected List<WeakReference<JManagedConnection>> initialValue() {
+                    return new ArrayList<WeakReference<JManagedConnection>>(THREAD_LIST_MAX);
+                }
+            };
+
+    /**
+     * Stripes of idle connections, next one to borrow first. They may contain
+     * connections which are no longer idle: they are skipped when polled.
+     */
+    private final List<ConcurrentLinkedDeque<JManagedConnection>> idleStripes;
+
+    /**
+     * Per stripe count of idle connections. A stripe counter is updated by
+     * the threads of this stripe, so only the sum is meaningful.
+     */
+    private final AtomicIntegerArray idleCounts = new AtomicIntegerArray(MAX_STRIPES * COUNTER_PADDING);
+
+    /**
+     * Number of stripes used for new idle connections.
+     */
+    private volatile int stripes = 1;
+
+    /**
+     * Highest number of stripes ever used: older stripes may still hold idle
+     * connections.
+     */
+    private volatile int stripesHigh = 1;
+
+    /**
+     * Most recently used idle connections are borrowed first.
+     */
+    private volatile boolean mru = true;
+
+    /**
+     * Threads waiting for a connection, oldest first.
+     */
+    private final ConcurrentLinkedDeque<Waiter> waiterQueue = new ConcurrentLinkedDeque<Waiter>();
+
+    /**
+     * Number of threads waiting for a connection.
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Fair policy: returned connections are handed to the oldest waiter.
+     */
+    private volatile boolean fair = true;
+
+    /**
+     * A thread tries first the connections it has returned (off by default).
+     */
+    private volatile boolean threadAffinity = false;
+
+    /**
+     * Tells a waiter whether a new connection may be created.
+     */
+    interface Capacity {
+
+        /**
+         * @return true if the pool may open a new connection.
+         */
+        boolean isAvailable();
+    }
+
+    /**
+     * A thread waiting for a connection.
+     */
+    private static final class Waiter {
+
+        /**
+         * The waiting thread.
+         */
+        private final Thread thread = Thread.currentThread();
+
+        /**
+         * Connection (or CAPACITY_FREED) handed to this waiter, CANCELLED if
+         * the waiter has left. A waiter which has left may stay in the queue:
+         * it is skipped, and unlinked once at the head.
+         */
+        private final AtomicReference<Object> item = new AtomicReference<Object>();
+
+        /**
+         * Woken up because a connection became idle.
+         */
+        private final AtomicBoolean signalled = new AtomicBoolean();
+    }
+
+    /**
+     * Builds an empty bag.
+     */
+    public ConnectionBag() {
+        idleStripes = new ArrayList<ConcurrentLinkedDeque<JManagedConnection>>(MAX_STRIPES);
+        for (int i = 0; i < MAX_STRIPES; i++) {
+            idleStripes.add(new ConcurrentLinkedDeque<JManagedConnection>());
+        }
+    }
+
+    /**
+     * @return true if returned connections are handed to the oldest waiter.
+     */
+    public boolean isFair() {
+        return fair;
+    }
+
+    /**
+     * @param fair true to hand returned connections to the oldest waiter,
+     *        false to let arriving threads take them first.
+     */
+    public void setFair(final boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * @return true if a thread tries first the connections it has returned.
+     */
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * @param threadAffinity true if a thread tries first the connections it
+     *        has returned, the last one first.
+     */
+    public void setThreadAffinity(final boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * @return true if the most recently used idle connections are borrowed
+     *         first, false for the least recently used.
+     */
+    public boolean isMru() {
+        return mru;
+    }
+
+    /**
+     * @param mru true to borrow the most recently used idle connections first,
+     *        false for the least recently used.
+     */
+    public void setMru(final boolean mru) {
+        this.mru = mru;
+    }
+
+    /**
+     * @return number of stripes of idle connections.
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * @param stripes number of stripes of idle connections, between 1 and
+     *        MAX_STRIPES
+     */
+    public synchronized void setStripes(final int stripes) {
+        int n = Math.max(1, Math.min(MAX_STRIPES, stripes));
+        if (n > stripesHigh) {
+            stripesHigh = n;
+        }
+        this.stripes = n;
+    }
+
+    /**
+     * Try to claim an idle connection, without waiting.
+     * @return a connection in STATE_IN_USE, or null if none is idle
+     */
+    public JManagedConnection borrow() {
+        // Try the connections last returned by this thread: a single CAS if
+        // the last one is still idle. Another thread may have taken it
+        // meanwhile, then the CAS fails and the next one is tried.
+        if (threadAffinity) {
+            List<WeakReference<JManagedConnection>> list = threadList.get();
+            for (int i = list.size() - 1; i >= 0; i--) {
+                JManagedConnection mc = list.remove(i).get();
+                if (mc != null && claim(mc)) {
+                    return mc;
+                }
+            }
+        }
+
+        // Then the next idle connection of the home stripe, else steal one
+        int home = homeStripe();
+        int high = stripesHigh;
+        for (int i = 0; i < high; i++) {
+            JManagedConnection mc = poll(idleStripes.get((home + i) % high));
+            if (mc != null) {
+                return mc;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Try to claim an idle connection which has a statement in its cache,
+     * else any idle connection, without waiting. Only the first idle
+     * connections are looked at, so that a miss stays cheap.
+     * @param hint the statement the caller will run first, or null
+     * @return a connection in STATE_IN_USE, or null if none is idle
+     */
+    public JManagedConnection borrow(final StatementKey hint) {
+        if (hint != null) {
+            int home = homeStripe();
+            int high = stripesHigh;
+            int scanned = 0;
+            for (int i = 0; i < high && scanned < HINT_SCAN_MAX; i++) {
+                for (JManagedConnection mc : idleStripes.get((home + i) % high)) {
+                    if (scanned++ >= HINT_SCAN_MAX) {
+                        break;
+                    }
+                    // Its entry stays in the stripe, skipped when polled
+                    if (mc.getState() == STATE_NOT_IN_USE && mc.isCached(hint) && claim(mc)) {
+                        return mc;
+                    }
+                }
+            }
+        }
+        return borrow();
+    }
+
+    /**
+     * Registers the current thread as a waiter, unless too many threads are
+     * already waiting.
+     * @param maxWaiters max number of waiters
+     * @return false if maxWaiters is reached
+     */
+    public boolean addWaiter(final int maxWaiters) {
+        int current;
+        do {
+            current = waiters.get();
+            if (current >= maxWaiters) {
+                return false;
+            }
+        } while (!waiters.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Unregisters the current thread as a waiter.
+     */
+    public void removeWaiter() {
+        waiters.decrementAndGet();
+    }
+
+    /**
+     * Wait for a connection, in FIFO order. The caller must be registered as
+     * a waiter.
+     * @param timeout max time to wait
+     * @param unit unit of the timeout
+     * @param capacity tells whether a new connection may be created
+     * @return a connection in STATE_IN_USE, or null if the timeout has expired
+     *         or if a connection may be created (a connection has been
+     *         destroyed)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public JManagedConnection poll(final long timeout, final TimeUnit unit, final Capacity capacity)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Waiter waiter = new Waiter();
+        waiterQueue.offerLast(waiter);
+        try {
+            while (true) {
+                Object item = waiter.item.get();
+                if (item != null) {
+                    return handed(item);
+                }
+
+                // A connection may have been returned before we were queued,
+                // or we have been woken up for an idle connection.
+                waiter.signalled.set(false);
+                JManagedConnection mc = borrow();
+                if (mc != null) {
+                    if (!waiter.item.compareAndSet(null, CANCELLED)) {
+                        // Something has been handed meanwhile, give it back.
+                        giveBack(waiter.item.get());
+                    }
+                    return mc;
+                }
+
+                // A connection may have been destroyed before we were
+                // queued: its signal went to nobody.
+                if (capacity.isAvailable()) {
+                    if (waiter.item.compareAndSet(null, CANCELLED)) {
+                        return null;
+                    }
+                    return handed(waiter.item.get());
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    if (waiter.item.compareAndSet(null, CANCELLED)) {
+                        throw new InterruptedException();
+                    }
+                    return handed(waiter.item.get());
+                }
+            }
+            // Timeout
+            if (!waiter.item.compareAndSet(null, CANCELLED)) {
+                giveBack(waiter.item.get());
+            }
+            return null;
+        } finally {
+            unlinkCancelled();
+        }
+    }
+
+    /**
+     * Gives back a borrowed connection.
+     * @param mc the connection
+     */
+    @SuppressWarnings("boxing")
+    public void requite(final JManagedConnection mc) {
+        if (mc.getState() != STATE_IN_USE) {
+            logger.debug("Connection {0} not returned, state is {1}", mc.getIdentifier(), mc.getState());
+            return;
+        }
+        if (release(mc) && threadAffinity) {
+            List<WeakReference<JManagedConnection>> list = threadList.get();
+            if (list.size() < THREAD_LIST_MAX) {
+                list.add(new WeakReference<JManagedConnection>(mc));
+            }
+        }
+    }
+
+    /**
+     * Adds a new connection in the bag. If it is idle, it is given to a waiter.
+     * @param mc the connection
+     */
+    public void add(final JManagedConnection mc) {
+        if (mc.getState() == STATE_NOT_IN_USE) {
+            // Not yet visible: own it until it is released.
+            mc.setState(STATE_IN_USE);
+            register(mc);
+            release(mc);
+        } else {
+            register(mc);
+        }
+    }
+
+    /**
+     * Removes a connection from the bag. The connection must be in use or
+     * reserved.
+     * @param mc the connection
+     * @return true if the connection has been removed
+     */
+    @SuppressWarnings("boxing")
+    public boolean remove(final JManagedConnection mc) {
+        if (!mc.compareAndSetState(STATE_IN_USE, STATE_REMOVED) && !mc.compareAndSetState(STATE_RESERVED, STATE_REMOVED)) {
+            logger.warn("Attempt to remove a connection {0} in state {1}", mc.getIdentifier(), mc.getState());
+            return false;
+        }
+        if (registry.remove(Integer.valueOf(mc.getIdentifier()), mc)) {
+            registrySize.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param identifier the identifier of a connection
+     * @return the connection with this identifier, null if not in the bag.
+     */
+    public JManagedConnection get(final int identifier) {
+        return registry.get(Integer.valueOf(identifier));
+    }
+
+    /**
+     * Reserves an idle connection so that it can't be borrowed.
+     * @param mc the connection
+     * @return true if reserved
+     */
+    public boolean reserve(final JManagedConnection mc) {
+        if (mc.compareAndSetState(STATE_NOT_IN_USE, STATE_RESERVED)) {
+            idleCounts.decrementAndGet(homeStripe() * COUNTER_PADDING);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes a reserved connection available again.
+     * @param mc the connection
+     */
+    public void unreserve(final JManagedConnection mc) {
+        if (mc.compareAndSetState(STATE_RESERVED, STATE_IN_USE)) {
+            release(mc);
+        }
+    }
+
+    /**
+     * Tells the oldest waiter that a connection has been destroyed, so that it
+     * may create a new one.
+     */
+    public void signalCapacity() {
+        handOff(CAPACITY_FREED);
+    }
+
+    /**
+     * @return a snapshot of all the connections.
+     */
+    public List<JManagedConnection> values() {
+        return new ArrayList<JManagedConnection>(registry.values());
+    }
+
+    /**
+     * @param state the requested state
+     * @return a snapshot of the connections in the given state.
+     */
+    public List<JManagedConnection> values(final int state) {
+        List<JManagedConnection> list = new ArrayList<JManagedConnection>();
+        for (JManagedConnection mc : registry.values()) {
+            if (mc.getState() == state) {
+                list.add(mc);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param state the requested state
+     * @return number of connections in the given state.
+     */
+    public int getCount(final int state) {
+        int count = 0;
+        for (JManagedConnection mc : registry.values()) {
+            if (mc.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of idle connections.
+     */
+    public int getIdleCount() {
+        int count = 0;
+        int high = stripesHigh;
+        for (int i = 0; i < high; i++) {
+            count += idleCounts.get(i * COUNTER_PADDING);
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * @return number of connections in the bag.
+     */
+    public int size() {
+        return registrySize.get();
+    }
+
+    /**
+     * @return number of threads waiting for a connection.
+     */
+    public int getWaitingThreadCount() {
+        return waiters.get();
+    }
+
+    /**
+     * Release a connection owned by the caller (STATE_IN_USE): hand it to the
+     * oldest waiter with the fair policy, else make it idle.
+     * @param mc the connection
+     * @return true if the connection has been made idle
+     */
+    private boolean release(final JManagedConnection mc) {
+        if (fair && handOff(mc)) {
+            return false;
+        }
+        if (!mc.compareAndSetState(STATE_IN_USE, STATE_NOT_IN_USE)) {
+            // Removed meanwhile
+            return false;
+        }
+        int home = homeStripe();
+        idleCounts.incrementAndGet(home * COUNTER_PADDING);
+        if (mc.compareAndSetIdleQueued(false, true)) {
+            ConcurrentLinkedDeque<JManagedConnection> stripe = idleStripes.get(home);
+            if (mru) {
+                stripe.offerFirst(mc);
+            } else {
+                stripe.offerLast(mc);
+            }
+        }
+        // A waiter may have been queued after its last look at the idle
+        // connections: wake it up.
+        for (Waiter waiter : waiterQueue) {
+            if (waiter.item.get() == null && waiter.signalled.compareAndSet(false, true)) {
+                LockSupport.unpark(waiter.thread);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a connection in the registry.
+     * @param mc the connection
+     */
+    private void register(final JManagedConnection mc) {
+        if (registry.put(Integer.valueOf(mc.getIdentifier()), mc) == null) {
+            registrySize.incrementAndGet();
+        }
+    }
+
+    /**
+     * Claims an idle connection.
+     * @param mc the connection
+     * @return true if the connection was idle and is now in use
+     */
+    private boolean claim(final JManagedConnection mc) {
+        if (mc.compareAndSetState(STATE_NOT_IN_USE, STATE_IN_USE)) {
+            idleCounts.decrementAndGet(homeStripe() * COUNTER_PADDING);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Claims the next idle connection of a stripe.
+     * @param stripe the stripe
+     * @return a connection in STATE_IN_USE, or null if the stripe is empty
+     */
+    private JManagedConnection poll(final ConcurrentLinkedDeque<JManagedConnection> stripe) {
+        JManagedConnection mc = stripe.pollFirst();
+        while (mc != null) {
+            mc.compareAndSetIdleQueued(true, false);
+            if (claim(mc)) {
+                return mc;
+            }
+            // No longer idle
+            mc = stripe.pollFirst();
+        }
+        return null;
+    }
+
+    /**
+     * @return the stripe of the current thread.
+     */
+    private int homeStripe() {
+        int n = stripes;
+        if (n == 1) {
+            return 0;
+        }
+        return (int) (Thread.currentThread().getId() % n);
+    }
+
+    /**
+     * Hand an item to the oldest waiter.
+     * @param item a connection in STATE_IN_USE or CAPACITY_FREED
+     * @return false if there is no waiter
+     */
+    private boolean handOff(final Object item) {
+        Waiter waiter = waiterQueue.pollFirst();
+        while (waiter != null) {
+            if (waiter.item.compareAndSet(null, item)) {
+                LockSupport.unpark(waiter.thread);
+                return true;
+            }
+            // Waiter has left
+            waiter = waiterQueue.pollFirst();
+        }
+        return false;
+    }
+
+    /**
+     * Unlinks the waiters which have left from the head of the queue. The
+     * waiters leave mostly in FIFO order (same timeout), so this avoids a
+     * scan of the queue for each waiter.
+     */
+    private void unlinkCancelled() {
+        Waiter head = waiterQueue.peekFirst();
+        while (head != null && head.item.get() != null) {
+            waiterQueue.removeFirstOccurrence(head);
+            head = waiterQueue.peekFirst();
+        }
+    }
+
+    /**
+     * Gives back an item handed to a waiter which doesn't need it.
+     * @param item the item
+     */
+    private void giveBack(final Object item) {
+        if (item == CAPACITY_FREED) {
+            signalCapacity();
+        } else {
+            release((JManagedConnection) item);
+        }
+    }
+
+    /**
+     * @param item an item handed to a waiter
+     * @return the connection handed, null if it was CAPACITY_FREED
+     */
+    private static JManagedConnection handed(final Object item) {
+        if (item == CAPACITY_FREED) {
+            return null;
+        }
+        return (JManagedConnection) item;
+    }
+}
@@ -30,11 +30,24 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import javax.naming.NamingException;
@@ -60,7 +73,8 @@ import org.ow2.util.log.LogFactory;
  * @author Philippe Durieux
  * @author Florent Benoit
  */
-public class ConnectionManager implements DataSource, XADataSource, Referenceable, ConnectionEventListener {
+public class ConnectionManager implements DataSource, XADataSource, Referenceable, ConnectionEventListener,
+        StatementAwareDataSource {
 
     /**
      * Logger.
@@ -102,6 +116,26 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
      */
     private static final int DEFAULT_SAMPLING = 60;
 
+    /**
+     * Default time in ms after its last use before a connection is checked.
+     */
+    private static final long DEFAULT_VALIDATION_INTERVAL = 500;
+
+    /**
+     * Default max time of a check in seconds.
+     */
+    private static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+    /**
+     * Default max number of idle connections checked at each keeper run.
+     */
+    private static final int DEFAULT_IDLE_CHECK_BATCH = 4;
+
+    /**
+     * Default number of threads renewing the connections after a fatal error.
+     */
+    private static final int DEFAULT_RENEW_THREADS = 4;
+
 
     /**
      * List of all datasources.
@@ -114,22 +148,59 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     private TransactionManager tm = null;
 
     /**
-     * List of JManagedConnection not currently used. This avoids closing and
-     * reopening physical connections. We try to keep a minimum of minConPool
-     * elements here.
+     * All the JManagedConnection physically opened. Connections not currently
+     * used are kept in STATE_NOT_IN_USE: this avoids closing and reopening
+     * physical connections. We try to keep a minimum of minConPool elements
+     * here. Borrowing and returning a connection doesn't take the pool lock.
+     */
+    private final ConnectionBag bag = new ConnectionBag();
+
+    /**
+     * A waiter may create a connection while the pool is not full.
+     */
+    private final ConnectionBag.Capacity capacity = new ConnectionBag.Capacity() {
+        @Override
+        public boolean isAvailable() {
+            return totalConnections.get() < poolMax;
+        }
+    };
+
+    /**
+     * Number of connections in the pool plus the ones being created. A slot is
+     * reserved here before opening a physical connection, so that poolMax is
+     * never exceeded while no lock is held during the connect.
+     */
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    /**
+     * Lock used to run only one adjust() at a time. This is not the lock of
+     * the pool, so that the physical connections opened or closed by adjust()
+     * never block the other operations.
+     */
+    private final Lock adjustLock = new ReentrantLock();
+
+    /**
+     * An adjust() has been asked and not started yet.
+     */
+    private final AtomicBoolean adjustRequested = new AtomicBoolean();
+
+    /**
+     * Lock of the configuration and statistics updates. A j.u.c lock rather
+     * than the monitor of the pool: a virtual thread blocked on it, or
+     * opening a connection while holding it, doesn't pin its carrier.
      */
-    private final TreeSet<JManagedConnection> freeList = new TreeSet<JManagedConnection>();
+    private final Lock configLock = new ReentrantLock();
 
     /**
-     * Total list of JManagedConnection physically opened.
+     * Keeper running sampling() and adjust() every sampling period.
      */
-    private final LinkedList<JManagedConnection> mcList = new LinkedList<JManagedConnection>();
+    private final PoolKeeper poolKeeper = new PoolKeeper(this);
 
     /**
-     * This HashMap gives the JManagedConnection from its transaction Requests
+     * This Map gives the JManagedConnection from its transaction Requests
      * with same tx get always the same connection.
      */
-    private final Map<Transaction, JManagedConnection> tx2mc = new HashMap<Transaction, JManagedConnection>();
+    private final Map<Transaction, JManagedConnection> tx2mc = new ConcurrentHashMap<Transaction, JManagedConnection>();
 
     /**
      * Login timeout (DataSource impl).
@@ -293,7 +364,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     /**
      * Isolation level for JDBC.
      */
-    private int isolationLevel = -1;
+    private volatile int isolationLevel = -1;
 
     /**
      * Isolation level (but String format).
@@ -333,22 +404,22 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     /**
      * count max waiters during current period.
      */
-    private int waiterCount = 0;
+    private final AtomicInteger waiterCount = new AtomicInteger();
 
     /**
      * count max waiting time during current period.
      */
-    private long waitingTime = 0;
+    private final AtomicLong waitingTime = new AtomicLong();
 
     /**
      * count max busy connection during current period.
      */
-    private int busyMax = 0;
+    private final AtomicInteger busyMax = new AtomicInteger();
 
     /**
      * count min busy connection during current period.
      */
-    private int busyMin = 0;
+    private final AtomicInteger busyMin = new AtomicInteger();
 
     /**
      * High Value for no limit for the connection pool.
@@ -361,15 +432,44 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     private static final long ONE_DAY = 1440L * 60L * 1000L;
 
     /**
-     * max number of remove at once in the freelist We avoid removing too much
-     * mcs at once for perf reasons.
+     * Default max number of aged connections removed at each adjust. We avoid
+     * removing too much mcs at once for perf reasons.
      */
     private static final int MAX_REMOVE_FREELIST = 10;
 
+    /**
+     * Max number of parameterized SQL remembered as refused by the database.
+     */
+    private static final int PLAIN_ONLY_MAX = 1000;
+
+    /**
+     * Default part of the max age, in percent, by which the lifetime of each
+     * connection is randomly shortened.
+     */
+    private static final int DEFAULT_MAX_AGE_JITTER = 10;
+
+    /**
+     * Max value of maxAgeJitter.
+     */
+    private static final int MAX_PERCENT = 100;
+
+    /**
+     * Orders the connections by last use, the oldest first.
+     */
+    private static final Comparator<JManagedConnection> LEAST_RECENTLY_USED_FIRST =
+            new Comparator<JManagedConnection>() {
+        @Override
+        public int compare(final JManagedConnection mc1, final JManagedConnection mc2) {
+            long t1 = mc1.getLastUsedTime();
+            long t2 = mc2.getLastUsedTime();
+            return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+        }
+    };
+
     /**
      * minimum size of the connection pool.
      */
-    private int poolMin = 0;
+    private volatile int poolMin = 0;
 
     /**
      * @return min pool size.
@@ -379,19 +479,66 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     }
 
     /**
-     * @param min minimum connection pool size to be set.
+     * @param min minimum connection pool size to be set. The connections
+     *        missing are opened once the new size is recorded, without
+     *        holding the configuration lock.
      */
-    public synchronized void setPoolMin(final int min) {
-        if (poolMin != min) {
+    public void setPoolMin(final int min) {
+        boolean changed;
+        configLock.lock();
+        try {
+            changed = poolMin != min;
             poolMin = min;
-            adjust();
+        } finally {
+            configLock.unlock();
+        }
+        if (changed) {
+            if (warmUpThreads > 0) {
+                warmUp();
+            } else {
+                adjust();
+            }
         }
     }
 
+    /**
+     * Number of threads opening the connections in parallel when the pool is
+     * filled up to poolMin. 0 means that they are opened one after another, in
+     * the caller's thread.
+     */
+    private int warmUpThreads = 0;
+
+    /**
+     * @return number of threads used to warm up the pool (0 = synchronous).
+     */
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * @param nb number of threads used to warm up the pool (0 = synchronous).
+     */
+    public void setWarmUpThreads(final int nb) {
+        warmUpThreads = nb;
+    }
+
+    /**
+     * Duration of the last warm-up in milliseconds, -1 if not finished.
+     */
+    private volatile long warmUpTime = -1;
+
+    /**
+     * @return duration of the last warm-up in milliseconds, -1 if no warm-up
+     *         has finished yet.
+     */
+    public long getWarmUpTime() {
+        return warmUpTime;
+    }
+
     /**
      * maximum size of the connection pool. default value is "NO LIMIT".
      */
-    private int poolMax = NO_LIMIT;
+    private volatile int poolMax = NO_LIMIT;
 
     /**
      * @return actual max pool size
@@ -401,22 +548,32 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     }
 
     /**
-     * @param max max pool size. -1 means "no limit".
+     * @param max max pool size. -1 means "no limit". The connections in
+     *        excess are closed once the new size is recorded, without holding
+     *        the configuration lock.
      */
-    public synchronized void setPoolMax(final int max) {
-        if (poolMax != max) {
+    public void setPoolMax(final int max) {
+        boolean increased;
+        boolean decreased;
+        configLock.lock();
+        try {
+            int previous = poolMax;
             if (max < 0 || max > NO_LIMIT) {
-                if (currentWaiters > 0) {
-                    notify();
-                }
                 poolMax = NO_LIMIT;
             } else {
-                if (currentWaiters > 0 && poolMax < max) {
-                    notify();
-                }
                 poolMax = max;
-                adjust();
             }
+            increased = poolMax > previous;
+            decreased = poolMax < previous;
+        } finally {
+            configLock.unlock();
+        }
+        if (increased || decreased) {
+            adjust();
+        }
+        if (increased) {
+            // Waiters may now create a Connection.
+            bag.signalCapacity();
         }
     }
 
@@ -455,6 +612,65 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         maxAge = mn * ONE_MIN_MILLI;
     }
 
+    /**
+     * Part of the max age, in percent, by which the lifetime of each
+     * connection is randomly shortened. The connections opened together (at
+     * warm-up, or after a failover) don't reach their max age together, so
+     * they are not all reopened at once.
+     */
+    private volatile int maxAgeJitter = DEFAULT_MAX_AGE_JITTER;
+
+    /**
+     * @return the part of the max age, in percent, by which the lifetime of
+     *         each connection is randomly shortened.
+     */
+    public int getMaxAgeJitter() {
+        return maxAgeJitter;
+    }
+
+    /**
+     * @param percent part of the max age by which the lifetime of each
+     *        connection is randomly shortened (0 = all connections live
+     *        maxAge)
+     */
+    public void setMaxAgeJitter(final int percent) {
+        maxAgeJitter = Math.max(0, Math.min(percent, MAX_PERCENT));
+    }
+
+    /**
+     * @return the lifetime of a new connection in millisec: the max age, less
+     *         a random part of at most maxAgeJitter percent. A connection never
+     *         lives longer than the max age.
+     */
+    public long getConnectionLifetime() {
+        long jitter = maxAge / MAX_PERCENT * maxAgeJitter;
+        if (jitter <= 0) {
+            return maxAge;
+        }
+        return maxAge - (long) (ThreadLocalRandom.current().nextDouble() * jitter);
+    }
+
+    /**
+     * Max number of aged idle connections removed at each adjust, so that the
+     * connections are renewed a few at a time.
+     */
+    private volatile int maxRetirePerPeriod = MAX_REMOVE_FREELIST;
+
+    /**
+     * @return max number of aged idle connections removed at each adjust.
+     */
+    public int getMaxRetirePerPeriod() {
+        return maxRetirePerPeriod;
+    }
+
+    /**
+     * @param max max number of aged idle connections removed at each adjust
+     *        (at least 1)
+     */
+    public void setMaxRetirePerPeriod(final int max) {
+        maxRetirePerPeriod = Math.max(1, max);
+    }
+
     /**
      * max open time for a connection, in millisec.
      */
@@ -526,6 +742,90 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         maxWaiters = nb;
     }
 
+    /**
+     * @return true if a released Connection is given to the oldest waiter,
+     *         false if a new caller may take it first.
+     */
+    public boolean isFairWaiters() {
+        return bag.isFair();
+    }
+
+    /**
+     * @param fair true to give a released Connection to the oldest waiter
+     *        (FIFO), false to let new callers take it first (barging).
+     */
+    public void setFairWaiters(final boolean fair) {
+        bag.setFair(fair);
+    }
+
+    /**
+     * @return true if a thread is given back first the Connection it has
+     *         released last.
+     */
+    public boolean isThreadAffinity() {
+        return bag.isThreadAffinity();
+    }
+
+    /**
+     * @param threadAffinity true to give back first to a thread the
+     *        Connection it has released last, if still free. Useful when the
+     *        same thread opens and closes connections several times outside
+     *        a transaction. Off by default.
+     */
+    public void setThreadAffinity(final boolean threadAffinity) {
+        bag.setThreadAffinity(threadAffinity);
+    }
+
+    /**
+     * @return number of stripes of free Connections.
+     */
+    public int getStripes() {
+        return bag.getStripes();
+    }
+
+    /**
+     * Splits the free Connections in several stripes. A thread gives back
+     * its Connections to its own stripe and looks there first, before taking
+     * one from another stripe. poolMin and poolMax are still global limits.
+     * @param stripes number of stripes, 0 for one stripe per CPU
+     */
+    @SuppressWarnings("boxing")
+    public void setStripes(final int stripes) {
+        int n = stripes;
+        if (n <= 0) {
+            n = Runtime.getRuntime().availableProcessors();
+        }
+        if (n > ConnectionBag.MAX_STRIPES) {
+            logger.warn("Too many stripes ({0}), use {1}", n, ConnectionBag.MAX_STRIPES);
+        }
+        bag.setStripes(n);
+    }
+
+    /**
+     * @return "mru" if the most recently used free Connection is given first,
+     *         "lru" if the least recently used one is given first.
+     */
+    public String getFreeListPolicy() {
+        return bag.isMru() ? "mru" : "lru";
+    }
+
+    /**
+     * Sets the order in which free connections are given: "mru" (most
+     * recently used first, keeps statement caches warm on few connections)
+     * or "lru" (least recently used first, spreads the load on all the
+     * connections).
+     * @param policy "mru" or "lru"
+     */
+    public void setFreeListPolicy(final String policy) {
+        if (policy.equals("lru")) {
+            bag.setMru(false);
+        } else if (policy.equals("mru")) {
+            bag.setMru(true);
+        } else {
+            logger.warn("Unknown free list policy ''{0}'', keep ''{1}''", policy, getFreeListPolicy());
+        }
+    }
+
     /**
      * sampling period in sec.
      */
@@ -569,6 +869,141 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         checkLevel = level;
     }
 
+    /**
+     * Connections used less than this number of ms ago are not checked again.
+     */
+    private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+    /**
+     * @return number of ms after its last use before a connection is checked
+     *         again (checkLevel 2).
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * A connection returned to the pool less than this time ago has just
+     * worked: with checkLevel 2, it is given without a round trip to the
+     * database.
+     * @param ms number of ms after its last use before a connection is
+     *        checked again (0 = checked at each use)
+     */
+    public void setValidationInterval(final long ms) {
+        validationInterval = ms;
+    }
+
+    /**
+     * Max time of a check in seconds.
+     */
+    private volatile int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+    /**
+     * @return max time of a check in seconds.
+     */
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * @param sec max time of a check in seconds, given to
+     *        Connection.isValid() or to the test statement (0 = no limit)
+     */
+    public void setValidationTimeout(final int sec) {
+        validationTimeout = sec;
+    }
+
+    /**
+     * Idle connections unused for this number of seconds are checked in the
+     * background, 0 if they are never checked.
+     */
+    private volatile int keepaliveTime = 0;
+
+    /**
+     * @return number of seconds after which an idle connection is checked in
+     *         the background, 0 if disabled.
+     */
+    public int getKeepaliveTime() {
+        return keepaliveTime;
+    }
+
+    /**
+     * The keeper checks the idle connections unused for this time, so that
+     * broken connections are replaced before a request gets them, and
+     * sends them a round trip before a firewall or a NAT closes them. It
+     * must be lower than the idle timeout of the network or of the database.
+     * @param sec number of seconds after which an idle connection is checked
+     *        (0 = never)
+     */
+    public void setKeepaliveTime(final int sec) {
+        keepaliveTime = sec;
+    }
+
+    /**
+     * Max number of idle connections checked at each run of the keeper.
+     */
+    private volatile int idleCheckBatch = DEFAULT_IDLE_CHECK_BATCH;
+
+    /**
+     * @return max number of idle connections checked at each run of the
+     *         keeper.
+     */
+    public int getIdleCheckBatch() {
+        return idleCheckBatch;
+    }
+
+    /**
+     * @param nb max number of idle connections checked at each run of the
+     *        keeper, so that only a few idle connections are unavailable at
+     *        a time
+     */
+    public void setIdleCheckBatch(final int nb) {
+        idleCheckBatch = nb;
+    }
+
+    /**
+     * @return the period of the idle connection checks in seconds: a quarter
+     *         of keepaliveTime, the sampling period if disabled.
+     */
+    public int getIdleCheckPeriod() {
+        int keepalive = keepaliveTime;
+        if (keepalive <= 0) {
+            return samplingPeriod;
+        }
+        return Math.max(1, keepalive / 4);
+    }
+
+    /**
+     * Number of idle connections found broken by the keeper.
+     */
+    private final AtomicLong idleCheckFailures = new AtomicLong();
+
+    /**
+     * @return number of idle connections found broken by the keeper.
+     */
+    public long getIdleCheckFailures() {
+        return idleCheckFailures.get();
+    }
+
+    /**
+     * The driver implements Connection.isValid(): cleared at the first
+     * failure to call it, then the test statement is used.
+     */
+    private volatile boolean isValidSupported = true;
+
+    /**
+     * Number of connections checked with a round trip to the database.
+     */
+    private final AtomicLong validations = new AtomicLong();
+
+    /**
+     * @return number of connections checked with a round trip to the
+     *         database.
+     */
+    public long getValidations() {
+        return validations.get();
+    }
+
     /**
      * PreparedStatement pool size per managed connection.
      */
@@ -587,8 +1022,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     public void setPstmtMax(final int nb) {
         pstmtMax = nb;
         // Set the value in each connection.
-        for (Iterator i = mcList.iterator(); i.hasNext();) {
-            JManagedConnection mc = (JManagedConnection) i.next();
+        for (JManagedConnection mc : bag.values()) {
             mc.setPstmtMax(pstmtMax);
         }
     }
@@ -661,7 +1095,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     /**
      * maximum nb of busy connections in last sampling period.
      */
-    private int busyMaxRecent = 0;
+    private volatile int busyMaxRecent = 0;
 
     /**
      * @return maximum nb of busy connections in last sampling period.
@@ -673,7 +1107,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     /**
      * minimum nb of busy connections in last sampling period.
      */
-    private int busyMinRecent = 0;
+    private volatile int busyMinRecent = 0;
 
     /**
      * @return minimum nb of busy connections in last sampling period.
@@ -682,186 +1116,387 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         return busyMinRecent;
     }
 
-    /**
-     * nb of threads waiting for a Connection.
-     */
-    private int currentWaiters = 0;
-
     /**
      * @return current number of connection waiters.
      */
     public int getCurrentWaiters() {
-        return currentWaiters;
+        return bag.getWaitingThreadCount();
     }
 
     /**
      * total number of opened physical connections since the datasource
      * creation.
      */
-    private int openedCount = 0;
+    private final AtomicInteger openedCount = new AtomicInteger();
 
     /**
      * @return int number of physical jdbc connection opened.
      */
     public int getOpenedCount() {
-        return openedCount;
+        return openedCount.get();
     }
 
     /**
      * total nb of physical connection failures.
      */
-    private int connectionFailures = 0;
+    private final AtomicInteger connectionFailures = new AtomicInteger();
 
     /**
      * @return int number of xa connection failures on open.
      */
     public int getConnectionFailures() {
-        return connectionFailures;
+        return connectionFailures.get();
     }
 
     /**
      * total nb of connection leaks. A connection leak occurs when the caller
      * never issues a close method on the connection.
      */
-    private int connectionLeaks = 0;
+    private final AtomicInteger connectionLeaks = new AtomicInteger();
 
     /**
      * @return int number of connection leaks.
      */
     public int getConnectionLeaks() {
-        return connectionLeaks;
+        return connectionLeaks.get();
     }
 
     /**
      * total number of opened connections since the datasource creation.
      */
-    private int servedOpen = 0;
+    private final AtomicInteger servedOpen = new AtomicInteger();
 
     /**
      * @return int number of xa connection served.
      */
     public int getServedOpen() {
-        return servedOpen;
+        return servedOpen.get();
     }
 
     /**
-     * total nb of open connection failures because waiter overflow.
+     * Statements used on the connections of this pool.
      */
-    private int rejectedFull = 0;
+    private final SqlRegistry sqlRegistry = new SqlRegistry();
 
     /**
-     * @return int number of open calls that were rejected due to waiter
-     *         overflow.
+     * @return the statements used on the connections of this pool.
      */
-    public int getRejectedFull() {
-        return rejectedFull;
+    public SqlRegistry getSqlRegistry() {
+        return sqlRegistry;
     }
 
     /**
-     * total nb of open connection failures because timeout.
+     * Number of uses of a statement in the pool before it is cached.
      */
-    private int rejectedTimeout = 0;
+    private volatile int pstmtAdmission = 1;
 
     /**
-     * @return int number of open calls that were rejected by timeout.
+     * @return number of uses of a statement in the pool before it is cached.
      */
-    public int getRejectedTimeout() {
-        return rejectedTimeout;
+    public int getPstmtAdmission() {
+        return pstmtAdmission;
     }
 
     /**
-     * total nb of open connection failures for any other reason.
+     * Statements used only once (built with literals for example) don't
+     * evict the statements used again and again when this is greater than 1.
+     * @param nb number of uses of a statement in the pool before it is cached
      */
-    private int rejectedOther = 0;
+    public void setPstmtAdmission(final int nb) {
+        pstmtAdmission = nb;
+    }
 
     /**
-     * @return int number of open calls that were rejected.
+     * SQL given to the Statements is parameterized and executed with cached
+     * PreparedStatements.
      */
-    public int getRejectedOther() {
-        return rejectedOther;
+    private volatile boolean autoParameterize = false;
+
+    /**
+     * @return true if the SQL given to the Statements is parameterized.
+     */
+    public boolean isAutoParameterize() {
+        return autoParameterize;
     }
 
     /**
-     * @return int number of open calls that were rejected.
+     * The statements created by Connection.createStatement() parameterize
+     * their SQL: the string and number literals become bind variables, and
+     * the SQL is executed with a PreparedStatement of the statement cache.
+     * The applications building their SQL with literals then share a few
+     * parsed statements. This is off by default: a bound value may not
+     * behave exactly like a literal on some databases (CHAR comparisons for
+     * example). It has no effect without a statement cache (pstmtMax = 0).
+     * @param on true to parameterize the SQL of the Statements
      */
-    public int getRejectedOpen() {
-        return rejectedFull + rejectedTimeout + rejectedOther;
+    public void setAutoParameterize(final boolean on) {
+        autoParameterize = on;
     }
 
     /**
-     * maximum nb of waiters since datasource creation.
+     * Parameterized SQL which the database has refused to prepare (a bind
+     * variable where only a literal is allowed, for example). The SQL giving
+     * it is executed as is.
      */
-    private int waitersHigh = 0;
+    private final Set<String> plainOnlySql = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
-     * @return maximum nb of waiters since the datasource creation.
+     * @param sql a parameterized SQL
+     * @return true if the database has refused to prepare it.
      */
-    public int getWaitersHigh() {
-        return waitersHigh;
+    public boolean isPlainOnly(final String sql) {
+        return plainOnlySql.contains(sql);
     }
 
     /**
-     * maximum nb of waiters in last sampling period.
+     * Remembers that the database has refused to prepare a parameterized SQL.
+     * Only the first PLAIN_ONLY_MAX ones are remembered.
+     * @param sql the parameterized SQL
      */
-    private int waitersHighRecent = 0;
+    public void setPlainOnly(final String sql) {
+        if (plainOnlySql.size() < PLAIN_ONLY_MAX) {
+            plainOnlySql.add(sql);
+        }
+    }
 
     /**
-     * @return maximum nb of waiters in last sampling period.
+     * Number of the most used statements prepared on the connections opened
+     * by the pool itself (warm-up, min size, aged connections replacement).
      */
-    public int getWaitersHighRecent() {
-        return waitersHighRecent;
-    }
+    private volatile int pstmtPrepareTop = 0;
 
     /**
-     * total nb of waiters since datasource creation.
+     * @return number of the most used statements prepared on new connections.
      */
-    private int totalWaiterCount = 0;
+    public int getPstmtPrepareTop() {
+        return pstmtPrepareTop;
+    }
 
     /**
-     * @return total nb of waiters since the datasource creation.
+     * @param nb number of the most used statements prepared on the
+     *        connections opened by the pool itself (0 = none).
      */
-    public int getWaiterCount() {
-        return totalWaiterCount;
+    public void setPstmtPrepareTop(final int nb) {
+        pstmtPrepareTop = nb;
     }
 
     /**
-     * total waiting time in milliseconds.
+     * Statements always prepared on the connections opened by the pool itself.
      */
-    private long totalWaitingTime = 0;
+    private volatile List<StatementKey> warmStatements = Collections.emptyList();
 
     /**
-     * @return total waiting time since the datasource creation.
+     * @return the SQL of the statements always prepared on the connections
+     *         opened by the pool itself.
      */
-    public long getWaitingTime() {
-        return totalWaitingTime;
+    public List<String> getWarmStatements() {
+        List<String> list = new ArrayList<String>();
+        for (StatementKey key : warmStatements) {
+            list.add(key.getSql());
+        }
+        return list;
     }
 
     /**
-     * max waiting time in milliseconds.
+     * Sets the statements prepared on the connections opened by the pool
+     * itself (warm-up, min size, aged connections replacement) before they
+     * are given to the users. They come before the most used statements
+     * (pstmtPrepareTop).
+     * @param sqls the SQL of the statements
      */
-    private long waitingHigh = 0;
+    public void setWarmStatements(final List<String> sqls) {
+        List<StatementKey> list = new ArrayList<StatementKey>(sqls.size());
+        for (String sql : sqls) {
+            list.add(new StatementKey(sql));
+        }
+        warmStatements = list;
+    }
 
     /**
-     * @return max waiting time since the datasource creation.
+     * @return the statements to prepare on a new connection: the warm
+     *         statements, then the most used ones, up to pstmtMax.
      */
-    public long getWaitingHigh() {
-        return waitingHigh;
+    private List<StatementKey> getStatementsToPrepare() {
+        List<StatementKey> list = new ArrayList<StatementKey>(warmStatements);
+        if (pstmtPrepareTop > 0) {
+            for (StatementKey key : sqlRegistry.getTop(pstmtPrepareTop)) {
+                if (!list.contains(key)) {
+                    list.add(key);
+                }
+            }
+        }
+        if (list.size() > pstmtMax) {
+            return list.subList(0, pstmtMax);
+        }
+        return list;
     }
 
     /**
-     * max waiting time in milliseconds in last sampling period.
+     * PreparedStatement cache hits of the connections already destroyed.
      */
-    private long waitingHighRecent = 0;
+    private final AtomicLong pstmtHitsRetired = new AtomicLong();
 
     /**
-     * @return max waiting time in last sampling period.
+     * PreparedStatement cache misses of the connections already destroyed.
      */
-    public long getWaitingHighRecent() {
-        return waitingHighRecent;
-    }
+    private final AtomicLong pstmtMissesRetired = new AtomicLong();
 
     /**
-     * {@inheritDoc}
+     * PreparedStatement cache evictions of the connections already destroyed.
+     */
+    private final AtomicLong pstmtEvictionsRetired = new AtomicLong();
+
+    /**
+     * @return number of PreparedStatement found in the connection caches.
+     */
+    public long getPstmtHits() {
+        long count = pstmtHitsRetired.get();
+        for (JManagedConnection mc : bag.values()) {
+            count += mc.getPstmtHits();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of PreparedStatement not found in the connection caches.
+     */
+    public long getPstmtMisses() {
+        long count = pstmtMissesRetired.get();
+        for (JManagedConnection mc : bag.values()) {
+            count += mc.getPstmtMisses();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of PreparedStatement evicted from the connection caches.
+     */
+    public long getPstmtEvictions() {
+        long count = pstmtEvictionsRetired.get();
+        for (JManagedConnection mc : bag.values()) {
+            count += mc.getPstmtEvictions();
+        }
+        return count;
+    }
+
+    /**
+     * total nb of open connection failures because waiter overflow.
+     */
+    private final AtomicInteger rejectedFull = new AtomicInteger();
+
+    /**
+     * @return int number of open calls that were rejected due to waiter
+     *         overflow.
+     */
+    public int getRejectedFull() {
+        return rejectedFull.get();
+    }
+
+    /**
+     * total nb of open connection failures because timeout.
+     */
+    private final AtomicInteger rejectedTimeout = new AtomicInteger();
+
+    /**
+     * @return int number of open calls that were rejected by timeout.
+     */
+    public int getRejectedTimeout() {
+        return rejectedTimeout.get();
+    }
+
+    /**
+     * total nb of open connection failures for any other reason.
+     */
+    private final AtomicInteger rejectedOther = new AtomicInteger();
+
+    /**
+     * @return int number of open calls that were rejected.
+     */
+    public int getRejectedOther() {
+        return rejectedOther.get();
+    }
+
+    /**
+     * @return int number of open calls that were rejected.
+     */
+    public int getRejectedOpen() {
+        return rejectedFull.get() + rejectedTimeout.get() + rejectedOther.get();
+    }
+
+    /**
+     * maximum nb of waiters since datasource creation.
+     */
+    private volatile int waitersHigh = 0;
+
+    /**
+     * @return maximum nb of waiters since the datasource creation.
+     */
+    public int getWaitersHigh() {
+        return waitersHigh;
+    }
+
+    /**
+     * maximum nb of waiters in last sampling period.
+     */
+    private volatile int waitersHighRecent = 0;
+
+    /**
+     * @return maximum nb of waiters in last sampling period.
+     */
+    public int getWaitersHighRecent() {
+        return waitersHighRecent;
+    }
+
+    /**
+     * total nb of waiters since datasource creation.
+     */
+    private final AtomicInteger totalWaiterCount = new AtomicInteger();
+
+    /**
+     * @return total nb of waiters since the datasource creation.
+     */
+    public int getWaiterCount() {
+        return totalWaiterCount.get();
+    }
+
+    /**
+     * total waiting time in milliseconds.
+     */
+    private final AtomicLong totalWaitingTime = new AtomicLong();
+
+    /**
+     * @return total waiting time since the datasource creation.
+     */
+    public long getWaitingTime() {
+        return totalWaitingTime.get();
+    }
+
+    /**
+     * max waiting time in milliseconds.
+     */
+    private volatile long waitingHigh = 0;
+
+    /**
+     * @return max waiting time since the datasource creation.
+     */
+    public long getWaitingHigh() {
+        return waitingHigh;
+    }
+
+    /**
+     * max waiting time in milliseconds in last sampling period.
+     */
+    private volatile long waitingHighRecent = 0;
+
+    /**
+     * @return max waiting time in last sampling period.
+     */
+    public long getWaitingHighRecent() {
+        return waitingHighRecent;
+    }
+
+    /**
+     * {@inheritDoc}
      */
     @Override
     public int getLoginTimeout() throws SQLException {
@@ -912,6 +1547,37 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
      */
     @Override
     public Connection getConnection(final String username, final String password) throws SQLException {
+        return getConnection(username, password, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection getConnection(final String sql) throws SQLException {
+        return getConnection(userName, password, new StatementKey(sql));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection getConnection(final StatementKey key) throws SQLException {
+        return getConnection(userName, password, key);
+    }
+
+    /**
+     * Gets a connection, preferring an idle connection which has a statement
+     * in its cache.
+     * @param username the database user on whose behalf the connection is
+     *        being made
+     * @param password the user's password
+     * @param hint the statement the caller will run first, or null
+     * @return a connection to the data source
+     * @throws SQLException if a database access error occurs
+     */
+    private Connection getConnection(final String username, final String password, final StatementKey hint)
+            throws SQLException {
         JManagedConnection mc = null;
 
         // Get the current Transaction
@@ -927,7 +1593,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         logger.debug("Tx = {0}", tx);
 
         // Get a JManagedConnection in the pool for this user
-        mc = openConnection(username, tx);
+        mc = openConnection(username, tx, hint);
         Connection ret = mc.getConnection();
 
         // Enlist XAResource if we are actually in a transaction
@@ -1120,23 +1786,277 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         JManagedConnection mc = (JManagedConnection) event.getSource();
         logger.debug("mc= {0}", mc.getIdentifier());
 
-        // remove it from the list of open connections for this thread
-        // only if it was opened outside a tx.
-        closeConnection(mc, XAResource.TMFAIL);
+        // The caller still holds the connection: it is destroyed when
+        // closed if the error is fatal.
+        SQLException e = event.getSQLException();
+        if (e != null && errorClassifier.isFatal(e)) {
+            fatalErrors.incrementAndGet();
+            invalidateGeneration(mc.getGeneration(), e);
+        }
+
+        // The work done in the transaction can't be committed: delist the
+        // resource with TMFAIL, the transaction will be rolled back.
+        Transaction tx = mc.getTx();
+        if (tx != null && !mc.isDelisted()) {
+            mc.setDelisted(true);
+            try {
+                tx.delistResource(mc.getXAResource(), XAResource.TMFAIL);
+            } catch (Exception ex) {
+                logger.error("Pool: Exception while delisting resource:", ex);
+            }
+        }
+    }
+
+    /**
+     * Classifies the errors reported by the connections.
+     */
+    private final ErrorClassifier errorClassifier = new ErrorClassifier();
+
+    /**
+     * @return the classifier of the errors reported by the connections.
+     */
+    public ErrorClassifier getErrorClassifier() {
+        return errorClassifier;
+    }
+
+    /**
+     * @param states SQLStates of the errors which mean that the database
+     *        connection is lost, besides the default ones (class 08...)
+     */
+    public void setFatalSqlStates(final List<String> states) {
+        errorClassifier.setFatalSqlStates(states);
+    }
+
+    /**
+     * @param codes vendor error codes of the errors which mean that the
+     *        database connection is lost
+     */
+    public void setFatalErrorCodes(final List<Integer> codes) {
+        errorClassifier.setFatalErrorCodes(codes);
+    }
+
+    /**
+     * Number of fatal errors reported by the connections.
+     */
+    private final AtomicLong fatalErrors = new AtomicLong();
+
+    /**
+     * @return number of fatal errors reported by the connections.
+     */
+    public long getFatalErrors() {
+        return fatalErrors.get();
+    }
+
+    /**
+     * Generation of the connections. Each connection is tagged with the
+     * generation current when it was opened; the connections of an older
+     * generation are no longer given to the users.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * @return the current generation of the connections.
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * A connection of the given generation has got a fatal error: the
+     * database is probably down or has failed over, and all the connections
+     * of the current generation are lost. They are all invalidated at once,
+     * instead of being found one by one by the users. The idle ones are
+     * destroyed and the pool is refilled in parallel, in the background. The
+     * busy ones are destroyed when they are closed.
+     * <p>
+     * A connection of an older generation (opened before a flush or a
+     * previous failover) may report the failure which its generation has
+     * already been invalidated for, or a new one. An idle connection of the
+     * current generation is then checked in the background, and the current
+     * generation is invalidated if it is broken.
+     * @param gen the generation of the connection
+     * @param e the fatal error
+     */
+    private void invalidateGeneration(final int gen, final SQLException e) {
+        int current = generation.get();
+        if (gen == current) {
+            renewGeneration(current, e);
+        } else if (gen < current) {
+            probeGeneration(current, e);
+        }
+    }
+
+    /**
+     * Checks in the background an idle connection of the given generation,
+     * and renews the generation if the connection is broken. Only one check
+     * runs at a time.
+     * @param gen the generation to check
+     * @param e the fatal error of an older connection
+     */
+    private void probeGeneration(final int gen, final SQLException e) {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable probe = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!isGenerationAlive(gen)) {
+                        renewGeneration(gen, e);
+                    }
+                } finally {
+                    probing.set(false);
+                }
+            }
+        };
+        new PoolThreadFactory("JDBC Probe " + dSName).newThread(probe).start();
+    }
+
+    /**
+     * A check of the current generation is running.
+     */
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * @param gen a generation
+     * @return false if an idle connection of this generation is broken. The
+     *         busy connections report their own errors.
+     */
+    @SuppressWarnings("boxing")
+    private boolean isGenerationAlive(final int gen) {
+        for (JManagedConnection mc : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+            if (mc.getGeneration() != gen || !bag.reserve(mc)) {
+                continue;
+            }
+            boolean valid;
+            try {
+                JConnection conn = (JConnection) mc.getConnection();
+                valid = !conn.isPhysicallyClosed() && ping(mc, conn.getConnection(), System.currentTimeMillis());
+            } catch (SQLException ex) {
+                logger.debug("Idle connection {0} is broken", mc.getIdentifier(), ex);
+                valid = false;
+            }
+            if (valid) {
+                bag.unreserve(mc);
+            } else {
+                destroyItem(mc);
+            }
+            return valid;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new generation, unless the given one has already been
+     * renewed, and renews all the connections.
+     * @param gen the generation whose connections are lost
+     * @param e the fatal error
+     */
+    @SuppressWarnings("boxing")
+    private void renewGeneration(final int gen, final SQLException e) {
+        if (!generation.compareAndSet(gen, gen + 1)) {
+            return;
+        }
+        logger.warn("DataSource {0}: fatal error {1} ({2}), renewing all the connections", getDatasourceName(),
+                e.getSQLState(), e.getErrorCode(), e);
+        renew(true);
+    }
+
+    /**
+     * Renews all the connections without closing the busy ones: the
+     * connections opened so far belong to an old generation. The idle ones
+     * are replaced in the background, a new connection being opened before
+     * an old one is closed so that the pool keeps its capacity. The busy ones
+     * are closed when they are released. To be called after a change of the
+     * credentials or of the session settings of the database. This method
+     * returns immediately.
+     */
+    @SuppressWarnings("boxing")
+    public void flush() {
+        int gen = generation.incrementAndGet();
+        logger.info("DataSource {0}: flush, renewing all the connections (generation {1})", getDatasourceName(), gen);
+        renew(false);
+    }
+
+    /**
+     * Destroys the idle connections of the old generations and fills the
+     * pool up to poolMin, with several threads so that the old connections
+     * (which may be slow to close) and the new ones are handled in one wave.
+     * This method returns immediately.
+     * @param lost true if the old connections are lost: they are taken out of
+     *        the pool at once. Else, each one stays available until its
+     *        replacement is opened.
+     */
+    private void renew(final boolean lost) {
+        final int current = generation.get();
+        List<JManagedConnection> stale = new ArrayList<JManagedConnection>();
+        for (JManagedConnection mc : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+            if (mc.getGeneration() != current && (!lost || bag.reserve(mc))) {
+                stale.add(mc);
+            }
+        }
+        int missing = Math.max(0, poolMin - (totalConnections.get() - stale.size()));
+        int tasks = Math.max(stale.size(), missing);
+        if (tasks == 0) {
+            return;
+        }
+        int threads = Math.min(tasks, warmUpThreads > 0 ? warmUpThreads : DEFAULT_RENEW_THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new PoolThreadFactory("JDBC Renew "
+                + dSName));
+        for (int i = 0; i < tasks; i++) {
+            final JManagedConnection mc = i < stale.size() ? stale.get(i) : null;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean replaced = false;
+                    if (mc != null && !lost) {
+                        replaced = renewConnection(current, true);
+                    }
+                    // A borrower may have got it meanwhile: it is then
+                    // destroyed when released.
+                    if (mc != null && (lost || bag.reserve(mc))) {
+                        destroyItem(mc);
+                    }
+                    renewConnection(current, mc != null && !lost && !replaced);
+                }
+            });
+        }
+        // Threads stop once all connections are renewed
+        executor.shutdown();
+    }
+
+    /**
+     * Opens an idle connection of the given generation, if it is still the
+     * current one.
+     * @param gen the generation being filled
+     * @param replace true to open it even if the pool has poolMin connections
+     * @return true if a connection has been opened
+     */
+    private boolean renewConnection(final int gen, final boolean replace) {
+        if (generation.get() != gen || !replace && totalConnections.get() >= poolMin) {
+            return false;
+        }
+        try {
+            return createConnection(JManagedConnection.STATE_NOT_IN_USE) != null;
+        } catch (SQLException e) {
+            connectionFailures.incrementAndGet();
+            logger.debug("Cannot renew a Connection of {0}", dSName, e);
+            return false;
+        }
     }
 
     /**
      * @return int number of xa connection
      */
     public int getCurrentOpened() {
-        return mcList.size();
+        return bag.size();
     }
 
     /**
      * @return int number of busy xa connection.
      */
     public int getCurrentBusy() {
-        return mcList.size() - freeList.size();
+        return Math.max(0, bag.size() - bag.getIdleCount());
     }
 
     /**
@@ -1144,11 +2064,10 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
      */
     public void recomputeBusy() {
         int busy = getCurrentBusy();
-        if (busyMax < busy) {
-            busyMax = busy;
-        }
-        if (busyMin > busy) {
-            busyMin = busy;
+        updateMax(busyMax, busy);
+        int min = busyMin.get();
+        while (min > busy && !busyMin.compareAndSet(min, busy)) {
+            min = busyMin.get();
         }
     }
 
@@ -1162,48 +2081,127 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     /**
      * make samples with some monitoring values.
      */
-    public synchronized void sampling() {
-        waitingHighRecent = waitingTime;
-        if (waitingHigh < waitingTime) {
-            waitingHigh = waitingTime;
+    public void sampling() {
+        configLock.lock();
+        try {
+            long waiting = waitingTime.getAndSet(0);
+            waitingHighRecent = waiting;
+            if (waitingHigh < waiting) {
+                waitingHigh = waiting;
+            }
+
+            int waiters = waiterCount.getAndSet(0);
+            waitersHighRecent = waiters;
+            if (waitersHigh < waiters) {
+                waitersHigh = waiters;
+            }
+
+            busyMaxRecent = busyMax.getAndSet(getCurrentBusy());
+            busyMinRecent = busyMin.getAndSet(getCurrentBusy());
+
+            sqlRegistry.age();
+        } finally {
+            configLock.unlock();
         }
-        waitingTime = 0;
+    }
 
-        waitersHighRecent = waiterCount;
-        if (waitersHigh < waiterCount) {
-            waitersHigh = waiterCount;
+    /**
+     * Fill the pool up to poolMin in background. Connections are opened by
+     * warmUpThreads threads in parallel and can be borrowed as soon as they
+     * are ready. This method returns immediately.
+     */
+    @SuppressWarnings("boxing")
+    public void warmUp() {
+        final int missing = poolMin - totalConnections.get();
+        if (missing <= 0) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(missing);
+        warmUpTime = -1;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(warmUpThreads, missing), new PoolThreadFactory(
+                "JDBC WarmUp " + dSName));
+        for (int i = 0; i < missing; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (totalConnections.get() < poolMin) {
+                            createConnection(JManagedConnection.STATE_NOT_IN_USE);
+                        }
+                    } catch (SQLException e) {
+                        connectionFailures.incrementAndGet();
+                        logger.warn("Cannot create a Connection while warming up {0}", dSName, e);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            warmUpTime = System.currentTimeMillis() - start;
+                            logger.info("DS ''{0}'' warmed up with {1} connections in {2} ms", dSName, bag.size(),
+                                    warmUpTime);
+                        }
+                    }
+                }
+            });
         }
-        waiterCount = 0;
+        // Threads stop once all connections are opened
+        executor.shutdown();
+    }
 
-        busyMaxRecent = busyMax;
-        busyMax = getCurrentBusy();
-        busyMinRecent = busyMin;
-        busyMin = getCurrentBusy();
+    /**
+     * Starts the keeper of this pool, which runs sampling() and adjust() every
+     * sampling period.
+     */
+    public void startPoolKeeper() {
+        poolKeeper.start();
+    }
+
+    /**
+     * Stops the keeper of this pool.
+     */
+    public void stopPoolKeeper() {
+        poolKeeper.stop();
     }
 
     /**
      * Adjust the pool size, according to poolMax and poolMin values. Also
-     * remove old connections in the freeList.
+     * remove old connections in the freeList. If another thread is adjusting
+     * the pool, possibly waiting for the database, it adjusts it again once
+     * done and this call returns at once.
+     */
+    public void adjust() {
+        adjustRequested.set(true);
+        // Checked again after unlocking: a request made while the lock was
+        // held is never lost.
+        while (adjustRequested.get() && adjustLock.tryLock()) {
+            try {
+                while (adjustRequested.getAndSet(false)) {
+                    doAdjust();
+                }
+            } finally {
+                adjustLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adjust the pool, the adjust lock being held.
      */
     @SuppressWarnings("boxing")
-    public synchronized void adjust() {
+    private void doAdjust() {
         logger.debug(dSName);
 
         // Remove max aged elements in freelist
-        // - Not more than MAX_REMOVE_FREELIST
+        // - Not more than maxRetirePerPeriod
         // - Don't reduce pool size less than poolMin
-        int count = mcList.size() - poolMin;
+        int count = bag.size() - poolMin;
         // In case count is null, a new connection will be
         // recreated just after
         if (count >= 0) {
-            if (count > MAX_REMOVE_FREELIST) {
-                count = MAX_REMOVE_FREELIST;
+            if (count > maxRetirePerPeriod) {
+                count = maxRetirePerPeriod;
             }
-            for (Iterator i = freeList.iterator(); i.hasNext();) {
-                JManagedConnection mc = (JManagedConnection) i.next();
-                if (mc.isAged()) {
+            for (JManagedConnection mc : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+                if (mc.isAged() && bag.reserve(mc)) {
                     logger.debug("remove a timed out connection");
-                    i.remove();
                     destroyItem(mc);
                     count--;
                     if (count <= 0) {
@@ -1215,47 +2213,41 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         recomputeBusy();
 
         // Close (physically) connections lost (opened for too long time)
-        for (Iterator i = mcList.iterator(); i.hasNext();) {
-            JManagedConnection mc = (JManagedConnection) i.next();
+        for (JManagedConnection mc : bag.values(JManagedConnection.STATE_IN_USE)) {
             if (mc.inactive()) {
                 if (logger.isWarnEnabled()) {
                     logger.warn("close a timed out open connection {0}", mc.getIdentifier());
                 }
-                i.remove();
-                // destroy mc
-                mc.remove();
-                connectionLeaks++;
-                // Notify 1 thread waiting for a Connection.
-                if (currentWaiters > 0) {
-                    notify();
-                }
+                // destroy mc, a waiter may then create a new Connection.
+                destroyItem(mc);
+                connectionLeaks.incrementAndGet();
             }
         }
 
         // Shrink the pool in case of max pool size
         // This occurs when max pool size has been reduced by admin console.
         if (poolMax != NO_LIMIT) {
-            while (freeList.size() > poolMin && mcList.size() > poolMax) {
-                JManagedConnection mc = freeList.first();
-                freeList.remove(mc);
-                destroyItem(mc);
+            for (JManagedConnection mc : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+                if (bag.size() <= poolMax || bag.getIdleCount() <= poolMin) {
+                    break;
+                }
+                if (bag.reserve(mc)) {
+                    destroyItem(mc);
+                }
             }
         }
         recomputeBusy();
 
         // Recreate more Connections while poolMin is not reached
-        while (mcList.size() < poolMin) {
-            JManagedConnection mc = null;
+        while (totalConnections.get() < poolMin) {
             try {
-                mc = (JManagedConnection) getXAConnection();
-                openedCount++;
+                // tx = null. Assumes maxage already configured.
+                if (createConnection(JManagedConnection.STATE_NOT_IN_USE) == null) {
+                    break;
+                }
             } catch (SQLException e) {
                 throw new IllegalStateException("Could not create " + poolMin + " mcs in the pool : ", e);
             }
-            // tx = null. Assumes maxage already configured.
-            freeList.add(mc);
-            mcList.add(mc);
-            mc.addConnectionEventListener(this);
         }
     }
 
@@ -1267,8 +2259,23 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
      * @throws SQLException Cannot open a connection because the pool's max size
      *         is reached
      */
+    public JManagedConnection openConnection(final String user, final Transaction tx) throws SQLException {
+        return openConnection(user, tx, null);
+    }
+
+    /**
+     * Lookup connection in the pool for this user/tx, preferring an idle
+     * connection which has a statement in its cache.
+     * @param user user name
+     * @param tx Transaction the connection is involved
+     * @param hint the statement the caller will run first, or null
+     * @return a free JManagedConnection (never null)
+     * @throws SQLException Cannot open a connection because the pool's max size
+     *         is reached
+     */
     @SuppressWarnings("boxing")
-    public synchronized JManagedConnection openConnection(final String user, final Transaction tx) throws SQLException {
+    public JManagedConnection openConnection(final String user, final Transaction tx, final StatementKey hint)
+            throws SQLException {
         JManagedConnection mc = null;
         // If a Connection exists already for this tx, just return it.
         // If no transaction, never reuse a connection already used.
@@ -1277,7 +2284,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
             if (mc != null) {
                 logger.debug("Reuse a Connection for same tx");
                 mc.hold();
-                servedOpen++;
+                servedOpen.incrementAndGet();
                 return mc;
             }
         }
@@ -1285,111 +2292,85 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         long timetowait = waiterTimeout;
         long starttime = 0;
         while (mc == null) {
-            // try to find an mc in the free list
-            if (freeList.isEmpty()) {
-                // In case we have reached the maximum limit of the pool,
-                // we must wait until a connection is released.
-                if (mcList.size() >= poolMax) {
-                    boolean stoplooping = true;
-                    // If a timeout has been specified, wait, unless maxWaiters
-                    // is reached.
-                    if (timetowait > 0) {
-                        if (currentWaiters < maxWaiters) {
-                            currentWaiters++;
-                            // Store the maximum concurrent waiters
-                            if (waiterCount < currentWaiters) {
-                                waiterCount = currentWaiters;
-                            }
-                            if (starttime == 0) {
-                                starttime = System.currentTimeMillis();
-                                logger.debug("Wait for a free Connection, {0}", mcList.size());
-                            }
-                            try {
-                                wait(timetowait);
-                            } catch (InterruptedException ign) {
-                                logger.warn("Interrupted");
-                            } finally {
-                                currentWaiters--;
-                            }
-                            long stoptime = System.currentTimeMillis();
-                            long stillwaited = stoptime - starttime;
-                            timetowait = waiterTimeout - stillwaited;
-                            stoplooping = (timetowait <= 0);
-                            if (stoplooping) {
-                                // We have been waked up by the timeout.
-                                totalWaiterCount++;
-                                totalWaitingTime += stillwaited;
-                                if (waitingTime < stillwaited) {
-                                    waitingTime = stillwaited;
-                                }
-                            } else {
-                                if (!freeList.isEmpty() || mcList.size() < poolMax) {
-                                    // We have been notified by a connection
-                                    // released.
-                                    logger.debug("Notified after {0}", stillwaited);
-                                    totalWaiterCount++;
-                                    totalWaitingTime += stillwaited;
-                                    if (waitingTime < stillwaited) {
-                                        waitingTime = stillwaited;
-                                    }
-                                }
-                                continue;
-                            }
-                        }
-                    }
-                    if (stoplooping && freeList.isEmpty() && mcList.size() >= poolMax) {
-                        if (starttime > 0) {
-                            rejectedTimeout++;
-                            logger.warn("Cannot create a Connection - timeout");
-                        } else {
-                            rejectedFull++;
-                            logger.warn("Cannot create a Connection");
-                        }
-                        throw new SQLException("No more connections in " + getDatasourceName());
-                    }
-                    continue;
-                }
-                logger.debug("empty free list: Create a new Connection");
+            // try to claim a free mc
+            mc = bag.borrow(pstmtMax > 0 ? hint : null);
+            if (mc == null) {
                 try {
-                    // create a new XA Connection
-                    mc = (JManagedConnection) getXAConnection();
-                    openedCount++;
+                    // create a new XA Connection, unless the pool is full
+                    mc = createConnection(JManagedConnection.STATE_IN_USE);
                 } catch (SQLException e) {
-                    connectionFailures++;
-                    rejectedOther++;
+                    connectionFailures.incrementAndGet();
+                    rejectedOther.incrementAndGet();
                     logger.warn("Cannot create new Connection for tx", e);
                     throw e;
                 }
-                // Register the connection manager as a ConnectionEventListener
-                mc.addConnectionEventListener(this);
-                mcList.add(mc);
-            } else {
-                mc = freeList.last();
-                freeList.remove(mc);
-                // Check the connection before reusing it
-                if (checkLevel > 0) {
+                if (mc != null) {
+                    logger.debug("empty free list: Created a new Connection");
+                    if (starttime > 0) {
+                        // Created after a connection has been destroyed
+                        recordWait(System.currentTimeMillis() - starttime);
+                    }
+                    break;
+                }
+
+                // In case we have reached the maximum limit of the pool,
+                // we must wait until a connection is released.
+                // If a timeout has been specified, wait, unless maxWaiters
+                // is reached.
+                if (timetowait > 0 && bag.addWaiter(maxWaiters)) {
+                    // Store the maximum concurrent waiters
+                    updateMax(waiterCount, bag.getWaitingThreadCount());
+                    if (starttime == 0) {
+                        starttime = System.currentTimeMillis();
+                        logger.debug("Wait for a free Connection, {0}", bag.size());
+                    }
                     try {
-                        JConnection conn = (JConnection) mc.getConnection();
-                        if (conn.isPhysicallyClosed()) {
-                            logger.warn("The JDBC connection has been closed!");
-                            destroyItem(mc);
-                            starttime = 0;
-                            mc = null;
-                            continue;
-                        }
-                        if (checkLevel > 1) {
-                            java.sql.Statement stmt = conn.createStatement();
-                            stmt.execute(testStatement);
-                            stmt.close();
-                        }
-                    } catch (Exception e) {
-                        logger.error("DataSource " + getDatasourceName() + " error: removing invalid mc", e);
-                        destroyItem(mc);
-                        starttime = 0;
-                        mc = null;
+                        mc = bag.poll(timetowait, TimeUnit.MILLISECONDS, capacity);
+                    } catch (InterruptedException ign) {
+                        logger.warn("Interrupted");
+                    } finally {
+                        bag.removeWaiter();
+                    }
+                    long stoptime = System.currentTimeMillis();
+                    long stillwaited = stoptime - starttime;
+                    timetowait = waiterTimeout - stillwaited;
+                    if (mc != null || timetowait <= 0) {
+                        // We have been given a connection or waked up by the
+                        // timeout.
+                        logger.debug("Notified after {0}", stillwaited);
+                        recordWait(stillwaited);
+                    }
+                    if (mc == null && timetowait > 0) {
+                        // A connection has been destroyed, try again.
                         continue;
                     }
                 }
+                if (mc == null) {
+                    if (starttime > 0) {
+                        rejectedTimeout.incrementAndGet();
+                        logger.warn("Cannot create a Connection - timeout");
+                    } else {
+                        rejectedFull.incrementAndGet();
+                        logger.warn("Cannot create a Connection");
+                    }
+                    throw new SQLException("No more connections in " + getDatasourceName());
+                }
+            }
+
+            // Check the connection before reusing it. The connection is
+            // ours: no lock is held during the check.
+            if (mc.getGeneration() != generation.get()) {
+                logger.debug("Connection {0} opened before a flush or a fatal error", mc.getIdentifier());
+                destroyItem(mc);
+                mc = null;
+                continue;
+            }
+            if (checkLevel > 0 && !validate(mc)) {
+                destroyItem(mc);
+                starttime = 0;
+                timetowait = waiterTimeout;
+                mc = null;
+                continue;
             }
         }
         recomputeBusy();
@@ -1415,7 +2396,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
             }
         }
         mc.hold();
-        servedOpen++;
+        servedOpen.incrementAndGet();
         return mc;
     }
 
@@ -1424,7 +2405,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
      * connections to the pool of available connections.
      * @param tx the non null transaction
      */
-    public synchronized void freeConnections(final Transaction tx) {
+    public void freeConnections(final Transaction tx) {
         logger.debug("free connection for Tx = " + tx);
         JManagedConnection mc = tx2mc.remove(tx);
         if (mc == null) {
@@ -1441,14 +2422,16 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
     }
 
     /**
-     * Close all connections in the pool, when server is shut down.
+     * Close all connections in the pool, when server is shut down. The
+     * connections in use are closed too: see flush() to renew the connections
+     * of a running pool.
      */
-    public synchronized void closeAllConnection() {
-        // Close physically all connections
-        Iterator it = mcList.iterator();
+    public void closeAllConnection() {
+        // Close physically all connections, without holding any lock
+        Iterator<JManagedConnection> it = bag.values().iterator();
         try {
             while (it.hasNext()) {
-                JManagedConnection mc = (JManagedConnection) it.next();
+                JManagedConnection mc = it.next();
                 mc.close();
             }
         } catch (java.sql.SQLException e) {
@@ -1474,23 +2457,18 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         if (!mc.release()) {
             return false;
         }
-        if (mc.getTx() != null) {
-            logger.debug("keep connection for same tx");
-        } else {
+        // The XAResource has been enlisted in the transaction of the
+        // connection, if any: no need to ask the transaction manager.
+        Transaction tx = mc.getTx();
+        if (tx == null) {
+            // The connection may be reused at once, don't touch it anymore.
             freeItem(mc);
+            return true;
         }
+        logger.debug("keep connection for same tx");
 
-        // delist Resource if in transaction
-        Transaction tx = null;
-        try {
-            tx = tm.getTransaction();
-        } catch (NullPointerException n) {
-            // current is null: we are not in EasyBeans Server.
-            logger.error("Pool: should not be used outside a EasyBeans Server", n);
-        } catch (SystemException e) {
-            logger.error("Pool: getTransaction failed:", e);
-        }
-        if (tx != null && mc.isClosed()) {
+        // delist Resource, unless already done after an error
+        if (mc.isClosed() && !mc.isDelisted()) {
             try {
                 tx.delistResource(mc.getXAResource(), flag);
             } catch (Exception e) {
@@ -1500,38 +2478,250 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         return true;
     }
 
+    /**
+     * Creates a new JManagedConnection and adds it in the pool, unless the
+     * pool's max size is reached. A slot is first reserved, then the physical
+     * connection is opened without holding any lock, and the connection is
+     * finally published in the pool. Only the calling thread waits for the
+     * database.
+     * @param state the initial state of the connection (STATE_IN_USE if it is
+     *        returned to a borrower, STATE_NOT_IN_USE if it is kept free)
+     * @return the new connection or null if the pool is full
+     * @throws SQLException if the physical connection can't be opened
+     */
+    @SuppressWarnings("boxing")
+    private JManagedConnection createConnection(final int state) throws SQLException {
+        // Reserve a slot
+        int total;
+        do {
+            total = totalConnections.get();
+            if (total >= poolMax) {
+                return null;
+            }
+        } while (!totalConnections.compareAndSet(total, total + 1));
+
+        // Open the physical connection. It belongs to the generation current
+        // before the connect.
+        int gen = generation.get();
+        JManagedConnection mc = null;
+        try {
+            mc = (JManagedConnection) getXAConnection();
+            mc.setGeneration(gen);
+        } finally {
+            if (mc == null) {
+                // Release the slot, a waiter may use it.
+                totalConnections.decrementAndGet();
+                bag.signalCapacity();
+            }
+        }
+        openedCount.incrementAndGet();
+
+        // Not yet visible: prepare the warm statements and the statements used
+        // the most in the pool. This runs in the keeper or a warm-up thread,
+        // not on the request path.
+        if (state == JManagedConnection.STATE_NOT_IN_USE && pstmtMax > 0
+                && (pstmtPrepareTop > 0 || !warmStatements.isEmpty())) {
+            int prepared = mc.prepareStatements(getStatementsToPrepare());
+            logger.debug("{0} statements prepared on connection {1}", prepared, mc.getIdentifier());
+        }
+
+        // Publish it
+        // Register the connection manager as a ConnectionEventListener
+        mc.addConnectionEventListener(this);
+        mc.setState(state);
+        bag.add(mc);
+        return mc;
+    }
+
     /**
      * Free item and return it in the free list.
      * @param item The item to be freed
      */
     @SuppressWarnings("boxing")
-    private synchronized void freeItem(final JManagedConnection item) {
+    private void freeItem(final JManagedConnection item) {
         // Add it to the free list
         // Even if maxage is reached, because we avoids going under min pool
         // size.
         // PoolKeeper will manage aged connections.
-        freeList.add(item);
+        // A thread waiting for a Connection is given it directly.
+        if (item.getGeneration() != generation.get()) {
+            // Opened before a flush or a fatal error
+            destroyItem(item);
+            return;
+        }
+        item.setLastUsedTime(System.currentTimeMillis());
+        bag.requite(item);
         if (logger.isDebugEnabled()) {
             logger.debug("item added to freeList: " + item.getIdentifier());
         }
+        recomputeBusy();
+    }
 
-        // Notify 1 thread waiting for a Connection.
-        if (currentWaiters > 0) {
-            notify();
+    /**
+     * Checks a connection owned by the caller, according to checkLevel.
+     * Level 1 only looks whether the physical connection has been closed.
+     * Level 2 also asks the database, with Connection.isValid() if the
+     * driver supports it, else with the test statement, unless the
+     * connection has been used less than validationInterval ago.
+     * @param mc the connection (in use or reserved)
+     * @return false if the connection must be destroyed
+     */
+    private boolean validate(final JManagedConnection mc) {
+        try {
+            JConnection conn = (JConnection) mc.getConnection();
+            if (conn.isPhysicallyClosed()) {
+                logger.warn("The JDBC connection has been closed!");
+                return false;
+            }
+            if (checkLevel < 2) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now - mc.getLastUsedTime() < validationInterval) {
+                return true;
+            }
+            return ping(mc, conn.getConnection(), now);
+        } catch (SQLException e) {
+            logger.error("DataSource " + getDatasourceName() + " error: removing invalid mc", e);
+            return false;
         }
-        recomputeBusy();
     }
 
     /**
-     * Destroy an mc because connection closed or error occured.
-     * @param mc The mc to be destroyed
+     * Asks the database whether a connection owned by the caller still
+     * works, with Connection.isValid() if the driver supports it, else with
+     * the test statement.
+     * @param mc the connection (in use or reserved)
+     * @param physical its physical connection
+     * @param now the current time in ms
+     * @return false if the connection must be destroyed
+     * @throws SQLException if the test statement fails
+     */
+    private boolean ping(final JManagedConnection mc, final Connection physical, final long now)
+            throws SQLException {
+        validations.incrementAndGet();
+        boolean valid;
+        if (isValidSupported) {
+            try {
+                valid = physical.isValid(validationTimeout);
+            } catch (SQLFeatureNotSupportedException e) {
+                logger.debug("Connection.isValid() not supported, use the test statement", e);
+                isValidSupported = false;
+                valid = testStatement(physical);
+            } catch (AbstractMethodError e) {
+                // Driver older than JDBC 4
+                logger.debug("Connection.isValid() not implemented, use the test statement");
+                isValidSupported = false;
+                valid = testStatement(physical);
+            }
+        } else {
+            valid = testStatement(physical);
+        }
+        if (!valid) {
+            logger.warn("DataSource " + getDatasourceName() + ": removing invalid mc");
+            return false;
+        }
+        mc.setLastUsedTime(now);
+        return true;
+    }
+
+    /**
+     * Checks the idle connections unused for keepaliveTime, a batch at a
+     * time: the oldest first, at most idleCheckBatch. A checked connection
+     * is reserved, so no borrower can get it meanwhile. A broken connection
+     * is destroyed and replaced at once. Called by the keeper.
      */
-    private synchronized void destroyItem(final JManagedConnection mc) {
-        mcList.remove(mc);
-        mc.remove();
-        // Notify 1 thread waiting for a Connection.
-        if (currentWaiters > 0) {
-            notify();
+    @SuppressWarnings("boxing")
+    public void checkIdleConnections() {
+        int keepalive = keepaliveTime;
+        if (keepalive <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long limit = now - keepalive * MILLI;
+        List<JManagedConnection> idle = new ArrayList<JManagedConnection>();
+        for (JManagedConnection mc : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+            if (mc.getLastUsedTime() <= limit) {
+                idle.add(mc);
+            }
+        }
+        Collections.sort(idle, LEAST_RECENTLY_USED_FIRST);
+
+        int checked = 0;
+        int broken = 0;
+        for (JManagedConnection mc : idle) {
+            if (checked >= idleCheckBatch) {
+                break;
+            }
+            if (!bag.reserve(mc)) {
+                // Borrowed meanwhile
+                continue;
+            }
+            checked++;
+            boolean valid;
+            try {
+                JConnection conn = (JConnection) mc.getConnection();
+                valid = !conn.isPhysicallyClosed() && ping(mc, conn.getConnection(), now);
+            } catch (SQLException e) {
+                logger.debug("Idle connection {0} is broken", mc.getIdentifier(), e);
+                valid = false;
+            }
+            if (valid) {
+                bag.unreserve(mc);
+            } else {
+                idleCheckFailures.incrementAndGet();
+                destroyItem(mc);
+                broken++;
+            }
+        }
+
+        // Replace the broken connections before a request needs them
+        for (int i = 0; i < broken; i++) {
+            try {
+                if (createConnection(JManagedConnection.STATE_NOT_IN_USE) == null) {
+                    break;
+                }
+            } catch (SQLException e) {
+                connectionFailures.incrementAndGet();
+                logger.warn("Cannot replace a broken idle connection of {0}", dSName, e);
+                break;
+            }
+        }
+        if (checked > 0) {
+            logger.debug("{0} idle connections checked in {1}, {2} broken", checked, dSName, broken);
+        }
+    }
+
+    /**
+     * Runs the test statement on a physical connection.
+     * @param physical the physical connection
+     * @return true (the statement has been executed)
+     * @throws SQLException if the statement fails
+     */
+    private boolean testStatement(final Connection physical) throws SQLException {
+        java.sql.Statement stmt = physical.createStatement();
+        try {
+            stmt.setQueryTimeout(validationTimeout);
+            stmt.execute(testStatement);
+        } finally {
+            stmt.close();
+        }
+        return true;
+    }
+
+    /**
+     * Destroy an mc because connection closed or error occured.
+     * @param mc The mc to be destroyed (in use or reserved)
+     */
+    private void destroyItem(final JManagedConnection mc) {
+        if (bag.remove(mc)) {
+            totalConnections.decrementAndGet();
+            pstmtHitsRetired.addAndGet(mc.getPstmtHits());
+            pstmtMissesRetired.addAndGet(mc.getPstmtMisses());
+            pstmtEvictionsRetired.addAndGet(mc.getPstmtEvictions());
+            mc.remove();
+            // Notify 1 thread waiting for a Connection.
+            bag.signalCapacity();
         }
         recomputeBusy();
     }
@@ -1548,24 +2738,24 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         String noError = testStatement;
         JManagedConnection mc = null;
         boolean jmcCreated = false;
-        if (!freeList.isEmpty()) {
-            // find a connection to test in the freeList
-            Iterator it = freeList.iterator();
-            while (it.hasNext()) {
-                mc = (JManagedConnection) it.next();
-                try {
-                    JConnection conn = (JConnection) mc.getConnection();
-                    if (!conn.isPhysicallyClosed()) {
-                        // ok, we found a connection we can use to test
-                        logger.debug("Use a free JManagedConnection to test with " + testStatement);
-                        break;
-                    }
-                    mc = null;
-                } catch (SQLException e) {
-                    // Can't use this connection to test
-                    mc = null;
+        // find a connection to test in the free connections
+        for (JManagedConnection free : bag.values(JManagedConnection.STATE_NOT_IN_USE)) {
+            if (!bag.reserve(free)) {
+                continue;
+            }
+            try {
+                JConnection conn = (JConnection) free.getConnection();
+                if (!conn.isPhysicallyClosed()) {
+                    // ok, we found a connection we can use to test
+                    logger.debug("Use a free JManagedConnection to test with " + testStatement);
+                    mc = free;
+                    break;
                 }
+            } catch (SQLException e) {
+                // Can't use this connection to test
+                logger.debug("Cannot use connection to test", e);
             }
+            bag.unreserve(free);
         }
         if (mc == null) {
             // try to create mc Connection
@@ -1579,7 +2769,7 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
             mc = new JManagedConnection(conn, this);
             jmcCreated = true;
         }
-        if (mc != null) {
+        try {
             // Do the test on a the free connection or the created connection
             JConnection conn = (JConnection) mc.getConnection();
             java.sql.Statement stmt = conn.createStatement();
@@ -1593,10 +2783,48 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
             if (jmcCreated) {
                 mc.close();
             }
+        } finally {
+            if (!jmcCreated) {
+                bag.unreserve(mc);
+            }
         }
         return noError;
     }
 
+    /**
+     * Updates the waiters statistics after a wait for a Connection.
+     * @param waited time waited in milliseconds
+     */
+    private void recordWait(final long waited) {
+        totalWaiterCount.incrementAndGet();
+        totalWaitingTime.addAndGet(waited);
+        updateMax(waitingTime, waited);
+    }
+
+    /**
+     * Sets the new value if it is greater than the current one.
+     * @param max the maximum to update
+     * @param value the new value
+     */
+    private static void updateMax(final AtomicInteger max, final int value) {
+        int current = max.get();
+        while (current < value && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Sets the new value if it is greater than the current one.
+     * @param max the maximum to update
+     * @param value the new value
+     */
+    private static void updateMax(final AtomicLong max, final long value) {
+        long current = max.get();
+        while (current < value && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
     /**
      * Sets the transaction managed used by the connections.
      * @param tm the transaction manager.
@@ -1610,14 +2838,26 @@ public class ConnectionManager implements DataSource, XADataSource, Referenceabl
         return null;
     }
 
+    /**
+     * Gives the extensions of the pool, StatementAwareDataSource for example.
+     * @param iface an interface implemented by the pool
+     * @return this pool
+     * @throws SQLException if the pool doesn't implement the interface
+     */
     @Override
-    public <T> T unwrap(Class<T> iface) throws SQLException {
-        return null;
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("DataSource " + getDatasourceName() + " is not a wrapper for " + iface.getName());
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return false;
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tells whether an error reported by a connection means that the database
+ * connection is lost, as when the database is shut down or fails over. Such
+ * an error is fatal for all the connections opened before it.
+ * <p>
+ * An error is fatal if it, or one of its causes or next exceptions, is a
+ * SQLRecoverableException or a SQLNonTransientConnectionException, has a
+ * SQLState of class 08 (connection exception) or one of the other known
+ * disconnection states, or has a SQLState or a vendor error code configured
+ * as fatal. Vendor codes mean different things for different databases, so
+ * none is fatal by default.
+ */
+public class ErrorClassifier {
+
+    /**
+     * Class of the SQLStates of the connection exceptions.
+     */
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    /**
+     * Other SQLStates of lost connections: disconnect error, administrator
+     * shutdown, crash shutdown, cannot connect now (PostgreSQL), I/O errors
+     * (Sybase jConnect).
+     */
+    private static final Set<String> DEFAULT_FATAL_SQL_STATES = new HashSet<String>(Arrays.asList("01002", "57P01",
+            "57P02", "57P03", "JZ0C0", "JZ0C1"));
+
+    /**
+     * Max number of exceptions looked at in a chain.
+     */
+    private static final int MAX_CHAIN = 16;
+
+    /**
+     * SQLStates configured as fatal.
+     */
+    private volatile Set<String> fatalSqlStates = Collections.emptySet();
+
+    /**
+     * Vendor error codes configured as fatal.
+     */
+    private volatile Set<Integer> fatalErrorCodes = Collections.emptySet();
+
+    /**
+     * @return the SQLStates configured as fatal, besides the default ones.
+     */
+    public Set<String> getFatalSqlStates() {
+        return fatalSqlStates;
+    }
+
+    /**
+     * @param states SQLStates of the errors which mean that the connection is
+     *        lost, besides the default ones
+     */
+    public void setFatalSqlStates(final List<String> states) {
+        fatalSqlStates = Collections.unmodifiableSet(new HashSet<String>(states));
+    }
+
+    /**
+     * @return the vendor error codes configured as fatal.
+     */
+    public Set<Integer> getFatalErrorCodes() {
+        return fatalErrorCodes;
+    }
+
+    /**
+     * @param codes vendor error codes of the errors which mean that the
+     *        connection is lost (Oracle 3113 or 1089, for example)
+     */
+    public void setFatalErrorCodes(final List<Integer> codes) {
+        fatalErrorCodes = Collections.unmodifiableSet(new HashSet<Integer>(codes));
+    }
+
+    /**
+     * @param e an error reported by a connection
+     * @return true if the connection to the database is lost.
+     */
+    public boolean isFatal(final SQLException e) {
+        Throwable t = e;
+        for (int i = 0; t != null && i < MAX_CHAIN; i++) {
+            if (t instanceof SQLException && isFatalItself((SQLException) t)) {
+                return true;
+            }
+            Throwable next = null;
+            if (t instanceof SQLException) {
+                next = ((SQLException) t).getNextException();
+            }
+            t = next != null ? next : t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param e an error
+     * @return true if this error, without its causes, is fatal.
+     */
+    private boolean isFatalItself(final SQLException e) {
+        if (e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        if (state != null && (state.startsWith(CONNECTION_EXCEPTION_CLASS) || DEFAULT_FATAL_SQL_STATES.contains(state)
+                || fatalSqlStates.contains(state))) {
+            return true;
+        }
+        return fatalErrorCodes.contains(Integer.valueOf(e.getErrorCode()));
+    }
+}
@@ -0,0 +1,1082 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wrapper on a CallableStatement, cached like a PreparedStatement in the
+ * statement cache of its managed connection. On reuse, clearParameters() is
+ * called on the physical statement. Whether it also drops the out parameter
+ * registrations depends on the driver: the registrations of each use are
+ * tracked, and a statement used with other registrations than by its
+ * previous user is closed instead of going back to the cache.
+ */
+public class JCallableStatement extends JStatement implements CallableStatement {
+
+    /**
+     * Physical CallableStatement object on which the wrapper is.
+     */
+    private final CallableStatement cs;
+
+    /**
+     * Out parameters registered since the statement was prepared or reused:
+     * index or name, and type. Null if none.
+     */
+    private Map<Object, List<Object>> outParameters = null;
+
+    /**
+     * Out parameters registered by the previous user, which the driver may
+     * still have. Null if none.
+     */
+    private Map<Object, List<Object>> previousOutParameters = null;
+
+    /**
+     * Builds a new statement with the given wrapped statement of given connection and given key.
+     * @param cs the callable statement.
+     * @param mc managed connection
+     * @param key sql query and options.
+     */
+    public JCallableStatement(final CallableStatement cs, final JManagedConnection mc, final StatementKey key) {
+        super(cs, mc, key);
+        this.cs = cs;
+    }
+
+    /**
+     * An out parameter has been registered.
+     * @param parameter the index or the name of the parameter
+     * @param type the SQL type, and the scale or type name if any
+     */
+    private void outParameterRegistered(final Object parameter, final Object... type) {
+        parametersChanged();
+        if (outParameters == null) {
+            outParameters = new HashMap<Object, List<Object>>();
+        }
+        outParameters.put(parameter, Arrays.asList(type));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reuse() throws SQLException {
+        super.reuse();
+        previousOutParameters = outParameters;
+        outParameters = null;
+    }
+
+    /**
+     * @return false if this statement must not be given again once closed,
+     *         also if its out parameters are not registered as by the
+     *         previous user: a driver which keeps the registrations would
+     *         give them to the next user.
+     */
+    @Override
+    public boolean isReusable() {
+        if (!super.isReusable()) {
+            return false;
+        }
+        if (previousOutParameters == null) {
+            return true;
+        }
+        return previousOutParameters.equals(outParameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final int parameterIndex, final int sqlType) throws SQLException {
+        outParameterRegistered(parameterIndex, sqlType);
+        cs.registerOutParameter(parameterIndex, sqlType);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final int parameterIndex, final int sqlType, final int scale) throws SQLException {
+        outParameterRegistered(parameterIndex, sqlType, scale);
+        cs.registerOutParameter(parameterIndex, sqlType, scale);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean wasNull() throws SQLException {
+        return cs.wasNull();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getString(final int parameterIndex) throws SQLException {
+        return cs.getString(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getBoolean(final int parameterIndex) throws SQLException {
+        return cs.getBoolean(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final int parameterIndex) throws SQLException {
+        return cs.getByte(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final int parameterIndex) throws SQLException {
+        return cs.getShort(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final int parameterIndex) throws SQLException {
+        return cs.getInt(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(final int parameterIndex) throws SQLException {
+        return cs.getLong(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getFloat(final int parameterIndex) throws SQLException {
+        return cs.getFloat(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getDouble(final int parameterIndex) throws SQLException {
+        return cs.getDouble(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public BigDecimal getBigDecimal(final int parameterIndex, final int scale) throws SQLException {
+        return cs.getBigDecimal(parameterIndex, scale);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getBytes(final int parameterIndex) throws SQLException {
+        return cs.getBytes(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Date getDate(final int parameterIndex) throws SQLException {
+        return cs.getDate(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Time getTime(final int parameterIndex) throws SQLException {
+        return cs.getTime(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Timestamp getTimestamp(final int parameterIndex) throws SQLException {
+        return cs.getTimestamp(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getObject(final int parameterIndex) throws SQLException {
+        return cs.getObject(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BigDecimal getBigDecimal(final int parameterIndex) throws SQLException {
+        return cs.getBigDecimal(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getObject(final int parameterIndex, final Map<String, Class<?>> map) throws SQLException {
+        return cs.getObject(parameterIndex, map);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Ref getRef(final int parameterIndex) throws SQLException {
+        return cs.getRef(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Blob getBlob(final int parameterIndex) throws SQLException {
+        return cs.getBlob(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Clob getClob(final int parameterIndex) throws SQLException {
+        return cs.getClob(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Array getArray(final int parameterIndex) throws SQLException {
+        return cs.getArray(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Date getDate(final int parameterIndex, final Calendar cal) throws SQLException {
+        return cs.getDate(parameterIndex, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Time getTime(final int parameterIndex, final Calendar cal) throws SQLException {
+        return cs.getTime(parameterIndex, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Timestamp getTimestamp(final int parameterIndex, final Calendar cal) throws SQLException {
+        return cs.getTimestamp(parameterIndex, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final int parameterIndex, final int sqlType,
+            final String typeName) throws SQLException {
+        outParameterRegistered(parameterIndex, sqlType, typeName);
+        cs.registerOutParameter(parameterIndex, sqlType, typeName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final String parameterName, final int sqlType) throws SQLException {
+        outParameterRegistered(parameterName, sqlType);
+        cs.registerOutParameter(parameterName, sqlType);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final String parameterName, final int sqlType, final int scale) throws SQLException {
+        outParameterRegistered(parameterName, sqlType, scale);
+        cs.registerOutParameter(parameterName, sqlType, scale);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void registerOutParameter(final String parameterName, final int sqlType,
+            final String typeName) throws SQLException {
+        outParameterRegistered(parameterName, sqlType, typeName);
+        cs.registerOutParameter(parameterName, sqlType, typeName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public URL getURL(final int parameterIndex) throws SQLException {
+        return cs.getURL(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setURL(final String parameterName, final URL x) throws SQLException {
+        parametersChanged();
+        cs.setURL(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNull(final String parameterName, final int sqlType) throws SQLException {
+        parametersChanged();
+        cs.setNull(parameterName, sqlType);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBoolean(final String parameterName, final boolean x) throws SQLException {
+        parametersChanged();
+        cs.setBoolean(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setByte(final String parameterName, final byte x) throws SQLException {
+        parametersChanged();
+        cs.setByte(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setShort(final String parameterName, final short x) throws SQLException {
+        parametersChanged();
+        cs.setShort(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setInt(final String parameterName, final int x) throws SQLException {
+        parametersChanged();
+        cs.setInt(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLong(final String parameterName, final long x) throws SQLException {
+        parametersChanged();
+        cs.setLong(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFloat(final String parameterName, final float x) throws SQLException {
+        parametersChanged();
+        cs.setFloat(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDouble(final String parameterName, final double x) throws SQLException {
+        parametersChanged();
+        cs.setDouble(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBigDecimal(final String parameterName, final BigDecimal x) throws SQLException {
+        parametersChanged();
+        cs.setBigDecimal(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setString(final String parameterName, final String x) throws SQLException {
+        parametersChanged();
+        cs.setString(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBytes(final String parameterName, final byte[] x) throws SQLException {
+        parametersChanged();
+        cs.setBytes(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDate(final String parameterName, final Date x) throws SQLException {
+        parametersChanged();
+        cs.setDate(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTime(final String parameterName, final Time x) throws SQLException {
+        parametersChanged();
+        cs.setTime(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTimestamp(final String parameterName, final Timestamp x) throws SQLException {
+        parametersChanged();
+        cs.setTimestamp(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAsciiStream(final String parameterName, final InputStream x, final int length) throws SQLException {
+        parametersChanged();
+        cs.setAsciiStream(parameterName, x, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBinaryStream(final String parameterName, final InputStream x, final int length) throws SQLException {
+        parametersChanged();
+        cs.setBinaryStream(parameterName, x, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setObject(final String parameterName, final Object x, final int targetSqlType,
+            final int scale) throws SQLException {
+        parametersChanged();
+        cs.setObject(parameterName, x, targetSqlType, scale);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setObject(final String parameterName, final Object x, final int targetSqlType) throws SQLException {
+        parametersChanged();
+        cs.setObject(parameterName, x, targetSqlType);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setObject(final String parameterName, final Object x) throws SQLException {
+        parametersChanged();
+        cs.setObject(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCharacterStream(final String parameterName, final Reader reader, final int length) throws SQLException {
+        parametersChanged();
+        cs.setCharacterStream(parameterName, reader, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDate(final String parameterName, final Date x, final Calendar cal) throws SQLException {
+        parametersChanged();
+        cs.setDate(parameterName, x, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTime(final String parameterName, final Time x, final Calendar cal) throws SQLException {
+        parametersChanged();
+        cs.setTime(parameterName, x, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTimestamp(final String parameterName, final Timestamp x, final Calendar cal) throws SQLException {
+        parametersChanged();
+        cs.setTimestamp(parameterName, x, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNull(final String parameterName, final int sqlType, final String typeName) throws SQLException {
+        parametersChanged();
+        cs.setNull(parameterName, sqlType, typeName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getString(final String parameterName) throws SQLException {
+        return cs.getString(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getBoolean(final String parameterName) throws SQLException {
+        return cs.getBoolean(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getByte(final String parameterName) throws SQLException {
+        return cs.getByte(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public short getShort(final String parameterName) throws SQLException {
+        return cs.getShort(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInt(final String parameterName) throws SQLException {
+        return cs.getInt(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLong(final String parameterName) throws SQLException {
+        return cs.getLong(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public float getFloat(final String parameterName) throws SQLException {
+        return cs.getFloat(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getDouble(final String parameterName) throws SQLException {
+        return cs.getDouble(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getBytes(final String parameterName) throws SQLException {
+        return cs.getBytes(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Date getDate(final String parameterName) throws SQLException {
+        return cs.getDate(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Time getTime(final String parameterName) throws SQLException {
+        return cs.getTime(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Timestamp getTimestamp(final String parameterName) throws SQLException {
+        return cs.getTimestamp(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getObject(final String parameterName) throws SQLException {
+        return cs.getObject(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BigDecimal getBigDecimal(final String parameterName) throws SQLException {
+        return cs.getBigDecimal(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getObject(final String parameterName, final Map<String, Class<?>> map) throws SQLException {
+        return cs.getObject(parameterName, map);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Ref getRef(final String parameterName) throws SQLException {
+        return cs.getRef(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Blob getBlob(final String parameterName) throws SQLException {
+        return cs.getBlob(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Clob getClob(final String parameterName) throws SQLException {
+        return cs.getClob(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Array getArray(final String parameterName) throws SQLException {
+        return cs.getArray(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Date getDate(final String parameterName, final Calendar cal) throws SQLException {
+        return cs.getDate(parameterName, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Time getTime(final String parameterName, final Calendar cal) throws SQLException {
+        return cs.getTime(parameterName, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Timestamp getTimestamp(final String parameterName, final Calendar cal) throws SQLException {
+        return cs.getTimestamp(parameterName, cal);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public URL getURL(final String parameterName) throws SQLException {
+        return cs.getURL(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RowId getRowId(final int parameterIndex) throws SQLException {
+        return cs.getRowId(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RowId getRowId(final String parameterName) throws SQLException {
+        return cs.getRowId(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRowId(final String parameterName, final RowId x) throws SQLException {
+        parametersChanged();
+        cs.setRowId(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNString(final String parameterName, final String x) throws SQLException {
+        parametersChanged();
+        cs.setNString(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNCharacterStream(final String parameterName, final Reader reader, final long length) throws SQLException {
+        parametersChanged();
+        cs.setNCharacterStream(parameterName, reader, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNClob(final String parameterName, final NClob x) throws SQLException {
+        parametersChanged();
+        cs.setNClob(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClob(final String parameterName, final Reader reader, final long length) throws SQLException {
+        parametersChanged();
+        cs.setClob(parameterName, reader, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBlob(final String parameterName, final InputStream x, final long length) throws SQLException {
+        parametersChanged();
+        cs.setBlob(parameterName, x, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNClob(final String parameterName, final Reader reader, final long length) throws SQLException {
+        parametersChanged();
+        cs.setNClob(parameterName, reader, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NClob getNClob(final int parameterIndex) throws SQLException {
+        return cs.getNClob(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NClob getNClob(final String parameterName) throws SQLException {
+        return cs.getNClob(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSQLXML(final String parameterName, final SQLXML x) throws SQLException {
+        parametersChanged();
+        cs.setSQLXML(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLXML getSQLXML(final int parameterIndex) throws SQLException {
+        return cs.getSQLXML(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLXML getSQLXML(final String parameterName) throws SQLException {
+        return cs.getSQLXML(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getNString(final int parameterIndex) throws SQLException {
+        return cs.getNString(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getNString(final String parameterName) throws SQLException {
+        return cs.getNString(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getNCharacterStream(final int parameterIndex) throws SQLException {
+        return cs.getNCharacterStream(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getNCharacterStream(final String parameterName) throws SQLException {
+        return cs.getNCharacterStream(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getCharacterStream(final int parameterIndex) throws SQLException {
+        return cs.getCharacterStream(parameterIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getCharacterStream(final String parameterName) throws SQLException {
+        return cs.getCharacterStream(parameterName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBlob(final String parameterName, final Blob x) throws SQLException {
+        parametersChanged();
+        cs.setBlob(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClob(final String parameterName, final Clob x) throws SQLException {
+        parametersChanged();
+        cs.setClob(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAsciiStream(final String parameterName, final InputStream x, final long length) throws SQLException {
+        parametersChanged();
+        cs.setAsciiStream(parameterName, x, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBinaryStream(final String parameterName, final InputStream x, final long length) throws SQLException {
+        parametersChanged();
+        cs.setBinaryStream(parameterName, x, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCharacterStream(final String parameterName, final Reader reader, final long length) throws SQLException {
+        parametersChanged();
+        cs.setCharacterStream(parameterName, reader, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAsciiStream(final String parameterName, final InputStream x) throws SQLException {
+        parametersChanged();
+        cs.setAsciiStream(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBinaryStream(final String parameterName, final InputStream x) throws SQLException {
+        parametersChanged();
+        cs.setBinaryStream(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCharacterStream(final String parameterName, final Reader reader) throws SQLException {
+        parametersChanged();
+        cs.setCharacterStream(parameterName, reader);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNCharacterStream(final String parameterName, final Reader reader) throws SQLException {
+        parametersChanged();
+        cs.setNCharacterStream(parameterName, reader);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClob(final String parameterName, final Reader reader) throws SQLException {
+        parametersChanged();
+        cs.setClob(parameterName, reader);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBlob(final String parameterName, final InputStream x) throws SQLException {
+        parametersChanged();
+        cs.setBlob(parameterName, x);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNClob(final String parameterName, final Reader reader) throws SQLException {
+        parametersChanged();
+        cs.setNClob(parameterName, reader);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T getObject(final int parameterIndex, final Class<T> type) throws SQLException {
+        return cs.getObject(parameterIndex, type);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T getObject(final String parameterName, final Class<T> type) throws SQLException {
+        return cs.getObject(parameterName, type);
+    }
+}
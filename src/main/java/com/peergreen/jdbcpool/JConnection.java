@@ -33,6 +33,7 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
@@ -102,8 +103,12 @@ public class JConnection implements Connection {
      */
     @Override
     public Statement createStatement() throws SQLException {
+        if (xaConnection.isAutoParameterize()) {
+            return new JPlainStatement(this, xaConnection, physicalConnection, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY, StatementKey.UNSET);
+        }
         try {
-            return physicalConnection.createStatement();
+            return new JReportingStatement(physicalConnection.createStatement(), xaConnection, this);
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -130,7 +135,8 @@ public class JConnection implements Connection {
     @Override
     public CallableStatement prepareCall(final String sql) throws SQLException {
         try {
-            return physicalConnection.prepareCall(sql);
+            return xaConnection.prepareCall(new StatementKey(true, sql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY, StatementKey.UNSET));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -364,8 +370,13 @@ public class JConnection implements Connection {
      */
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
+        if (xaConnection.isAutoParameterize()) {
+            return new JPlainStatement(this, xaConnection, physicalConnection, resultSetType, resultSetConcurrency,
+                    StatementKey.UNSET);
+        }
         try {
-            return physicalConnection.createStatement(resultSetType, resultSetConcurrency);
+            return new JReportingStatement(physicalConnection.createStatement(resultSetType, resultSetConcurrency),
+                    xaConnection, this);
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -419,7 +430,8 @@ public class JConnection implements Connection {
     public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency)
             throws SQLException {
         try {
-            return physicalConnection.prepareCall(sql, resultSetType, resultSetConcurrency);
+            return xaConnection.prepareCall(new StatementKey(true, sql, resultSetType, resultSetConcurrency,
+                    StatementKey.UNSET));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -432,8 +444,13 @@ public class JConnection implements Connection {
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency, final int resultSetHoldability)
             throws SQLException {
+        if (xaConnection.isAutoParameterize()) {
+            return new JPlainStatement(this, xaConnection, physicalConnection, resultSetType, resultSetConcurrency,
+                    resultSetHoldability);
+        }
         try {
-            return physicalConnection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+            return new JReportingStatement(physicalConnection.createStatement(resultSetType, resultSetConcurrency,
+                    resultSetHoldability), xaConnection, this);
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -460,7 +477,8 @@ public class JConnection implements Connection {
     public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency,
             final int resultSetHoldability) throws SQLException {
         try {
-            return physicalConnection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            return xaConnection.prepareCall(new StatementKey(true, sql, resultSetType, resultSetConcurrency,
+                    resultSetHoldability));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -473,7 +491,7 @@ public class JConnection implements Connection {
     @Override
     public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
         try {
-            return physicalConnection.prepareStatement(sql, autoGeneratedKeys);
+            return xaConnection.prepareStatement(new StatementKey(sql, autoGeneratedKeys));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -487,7 +505,8 @@ public class JConnection implements Connection {
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
             final int resultSetHoldability) throws SQLException {
         try {
-            return physicalConnection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            return xaConnection.prepareStatement(new StatementKey(sql, resultSetType, resultSetConcurrency,
+                    resultSetHoldability));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -500,7 +519,7 @@ public class JConnection implements Connection {
     @Override
     public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
         try {
-            return physicalConnection.prepareStatement(sql, columnIndexes);
+            return xaConnection.prepareStatement(new StatementKey(sql, columnIndexes));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -513,7 +532,7 @@ public class JConnection implements Connection {
     @Override
     public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
         try {
-            return physicalConnection.prepareStatement(sql, columnNames);
+            return xaConnection.prepareStatement(new StatementKey(sql, columnNames));
         } catch (SQLException e) {
             xaConnection.notifyError(e);
             throw e;
@@ -25,6 +25,10 @@
 
 package com.peergreen.jdbcpool;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.transaction.TransactionManager;
@@ -77,11 +81,51 @@ public class JDBCPoolComponent  {
      */
     private static final int DEFAULT_PSTMT = 10;
 
+    /**
+     * Default number of threads opening the first connections.
+     */
+    private static final int DEFAULT_WARMUP_THREADS = 4;
+
+    /**
+     * Default order of the free connections.
+     */
+    private static final String DEFAULT_FREE_LIST_POLICY = "mru";
+
+    /**
+     * Default number of stripes of free connections.
+     */
+    private static final int DEFAULT_STRIPES = 1;
+
     /**
      * Default checked level.
      */
     private static final int DEFAULT_CHECK_LEVEL = 0;
 
+    /**
+     * Default time in ms after its last use before a connection is checked.
+     */
+    private static final long DEFAULT_VALIDATION_INTERVAL = 500;
+
+    /**
+     * Default max time of a check in seconds.
+     */
+    private static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+    /**
+     * Default max number of idle connections checked at each keeper run.
+     */
+    private static final int DEFAULT_IDLE_CHECK_BATCH = 4;
+
+    /**
+     * Default random part of the max age of the connections, in percent.
+     */
+    private static final int DEFAULT_MAX_AGE_JITTER = 10;
+
+    /**
+     * Default max number of aged connections removed at each keeper run.
+     */
+    private static final int DEFAULT_MAX_RETIRE_PER_PERIOD = 10;
+
     /**
      * Default test statement.
      */
@@ -97,6 +141,57 @@ public class JDBCPoolComponent  {
     @Property(mandatory=false, name="checkLevel")
    protected int checkLevel = DEFAULT_CHECK_LEVEL;
 
+    /**
+     * Connections used less than this number of ms ago are not checked again.
+     */
+    @Property(mandatory=false, name="validationInterval")
+    protected long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+
+    /**
+     * Max time of a check in seconds.
+     */
+    @Property(mandatory=false, name="validationTimeout")
+    protected int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+    /**
+     * Idle connections unused for this number of seconds are checked in the
+     * background (0 = never).
+     */
+    @Property(mandatory=false, name="keepaliveTime")
+    protected int keepaliveTime = 0;
+
+    /**
+     * Max number of idle connections checked at each run of the keeper.
+     */
+    @Property(mandatory=false, name="idleCheckBatch")
+    protected int idleCheckBatch = DEFAULT_IDLE_CHECK_BATCH;
+
+    /**
+     * Part of the max age, in percent, by which the lifetime of each
+     * connection is randomly shortened.
+     */
+    @Property(mandatory=false, name="maxAgeJitter")
+    protected int maxAgeJitter = DEFAULT_MAX_AGE_JITTER;
+
+    /**
+     * Max number of aged connections removed at each run of the keeper.
+     */
+    @Property(mandatory=false, name="maxRetirePerPeriod")
+    protected int maxRetirePerPeriod = DEFAULT_MAX_RETIRE_PER_PERIOD;
+
+    /**
+     * SQLStates meaning that the database connection is lost, besides the
+     * connection exceptions (class 08).
+     */
+    @Property(mandatory=false, name="fatalSqlStates")
+    protected String[] fatalSqlStates = new String[0];
+
+    /**
+     * Vendor error codes meaning that the database connection is lost.
+     */
+    @Property(mandatory=false, name="fatalErrorCodes")
+    protected int[] fatalErrorCodes = new int[0];
+
     /**
      * Connection manager object.
      */
@@ -152,6 +247,65 @@ public class JDBCPoolComponent  {
      */
     private final int pstmtMax = DEFAULT_PSTMT;
 
+    /**
+     * Number of uses of a statement in the pool before it is cached.
+     */
+    @Property(mandatory=false, name="pstmtAdmission")
+    protected int pstmtAdmission = 1;
+
+    /**
+     * SQL of the Statements is parameterized and executed with cached
+     * PreparedStatements.
+     */
+    @Property(mandatory=false, name="autoParameterize")
+    protected boolean autoParameterize = false;
+
+    /**
+     * Number of the most used statements prepared on the connections opened
+     * by the pool itself.
+     */
+    @Property(mandatory=false, name="pstmtPrepareTop")
+    protected int pstmtPrepareTop = 0;
+
+    /**
+     * SQL of the statements prepared on the connections opened by the pool.
+     */
+    @Property(mandatory=false, name="warmStatements")
+    protected String[] warmStatements = new String[0];
+
+    /**
+     * Number of threads opening the first connections in parallel (0 means
+     * that they are opened before the datasource is bound).
+     */
+    @Property(mandatory=false, name="warmUpThreads")
+    protected int warmUpThreads = DEFAULT_WARMUP_THREADS;
+
+    /**
+     * Released connections are given to the oldest waiter (true) or may be
+     * taken first by new callers (false).
+     */
+    @Property(mandatory=false, name="fairWaiters")
+    protected boolean fairWaiters = true;
+
+    /**
+     * A thread is given back first the connection it has released last (off
+     * by default).
+     */
+    @Property(mandatory=false, name="threadAffinity")
+    protected boolean threadAffinity = false;
+
+    /**
+     * Order of the free connections: "mru" or "lru".
+     */
+    @Property(mandatory=false, name="freeListPolicy")
+    protected String freeListPolicy = DEFAULT_FREE_LIST_POLICY;
+
+    /**
+     * Number of stripes of free connections (0 means one per CPU).
+     */
+    @Property(mandatory=false, name="stripes")
+    protected int stripes = DEFAULT_STRIPES;
+
     /**
      * Test statement.
      */
@@ -186,8 +340,29 @@ public class JDBCPoolComponent  {
         this.connectionManager.setPassword(this.password);
         this.connectionManager.setTransactionIsolation("default");
         this.connectionManager.setPstmtMax(this.pstmtMax);
+        this.connectionManager.setPstmtAdmission(this.pstmtAdmission);
+        this.connectionManager.setPstmtPrepareTop(this.pstmtPrepareTop);
+        this.connectionManager.setAutoParameterize(this.autoParameterize);
+        this.connectionManager.setWarmStatements(Arrays.asList(this.warmStatements));
         this.connectionManager.setCheckLevel(this.checkLevel);
         this.connectionManager.setTestStatement(this.testStatement);
+        this.connectionManager.setValidationInterval(this.validationInterval);
+        this.connectionManager.setValidationTimeout(this.validationTimeout);
+        this.connectionManager.setKeepaliveTime(this.keepaliveTime);
+        this.connectionManager.setIdleCheckBatch(this.idleCheckBatch);
+        this.connectionManager.setMaxAgeJitter(this.maxAgeJitter);
+        this.connectionManager.setMaxRetirePerPeriod(this.maxRetirePerPeriod);
+        this.connectionManager.setFatalSqlStates(Arrays.asList(this.fatalSqlStates));
+        List<Integer> codes = new ArrayList<Integer>();
+        for (int code : this.fatalErrorCodes) {
+            codes.add(Integer.valueOf(code));
+        }
+        this.connectionManager.setFatalErrorCodes(codes);
+        this.connectionManager.setWarmUpThreads(this.warmUpThreads);
+        this.connectionManager.setFairWaiters(this.fairWaiters);
+        this.connectionManager.setFreeListPolicy(this.freeListPolicy);
+        this.connectionManager.setThreadAffinity(this.threadAffinity);
+        this.connectionManager.setStripes(this.stripes);
 
     }
 
@@ -226,8 +401,13 @@ public class JDBCPoolComponent  {
         if (this.useTM) {
             this.connectionManager.setTm(this.transactionManager);
         }
-        this.connectionManager.setPoolMin(this.poolMin);
+        // Set max first: the warm-up started by setPoolMin() must not
+        // exceed it.
         this.connectionManager.setPoolMax(this.poolMax);
+        this.connectionManager.setPoolMin(this.poolMin);
+
+        // Maintain the pool in background
+        this.connectionManager.startPoolKeeper();
 
         // Something is there ?
         try {
@@ -258,6 +438,9 @@ public class JDBCPoolComponent  {
      */
     @Invalidate
     public void stop() throws Exception {
+        // Stop the maintenance of the pool
+        this.connectionManager.stopPoolKeeper();
+
         // Unbind the resource.
         try {
             new InitialContext().unbind(this.jndiName);
@@ -335,6 +518,132 @@ public class JDBCPoolComponent  {
         return this.checkLevel;
     }
 
+    /**
+     * @return number of ms after its last use before a connection is checked
+     *         again.
+     */
+    public long getValidationInterval() {
+        return this.validationInterval;
+    }
+
+    /**
+     * @return max time of a check in seconds.
+     */
+    public int getValidationTimeout() {
+        return this.validationTimeout;
+    }
+
+    /**
+     * @return number of seconds after which an idle connection is checked in
+     *         the background.
+     */
+    public int getKeepaliveTime() {
+        return this.keepaliveTime;
+    }
+
+    /**
+     * @return max number of idle connections checked at each run of the
+     *         keeper.
+     */
+    public int getIdleCheckBatch() {
+        return this.idleCheckBatch;
+    }
+
+    /**
+     * @return the random part of the max age of the connections, in percent.
+     */
+    public int getMaxAgeJitter() {
+        return this.maxAgeJitter;
+    }
+
+    /**
+     * @return max number of aged connections removed at each run of the
+     *         keeper.
+     */
+    public int getMaxRetirePerPeriod() {
+        return this.maxRetirePerPeriod;
+    }
+
+    /**
+     * @return the SQLStates meaning that the database connection is lost.
+     */
+    public String[] getFatalSqlStates() {
+        return this.fatalSqlStates.clone();
+    }
+
+    /**
+     * @return the vendor error codes meaning that the database connection is
+     *         lost.
+     */
+    public int[] getFatalErrorCodes() {
+        return this.fatalErrorCodes.clone();
+    }
+
+
+    /**
+     * @return number of threads opening the first connections.
+     */
+    public int getWarmUpThreads() {
+        return this.warmUpThreads;
+    }
+
+    /**
+     * @return true if released connections are given to the oldest waiter.
+     */
+    public boolean isFairWaiters() {
+        return this.fairWaiters;
+    }
+
+    /**
+     * @return true if a thread is given back first the connection it has
+     *         released last.
+     */
+    public boolean isThreadAffinity() {
+        return this.threadAffinity;
+    }
+
+    /**
+     * @return the order of the free connections ("mru" or "lru").
+     */
+    public String getFreeListPolicy() {
+        return this.freeListPolicy;
+    }
+
+    /**
+     * @return the number of stripes of free connections.
+     */
+    public int getStripes() {
+        return this.stripes;
+    }
+
+    /**
+     * @return number of uses of a statement in the pool before it is cached.
+     */
+    public int getPstmtAdmission() {
+        return this.pstmtAdmission;
+    }
+
+    /**
+     * @return true if the SQL of the Statements is parameterized.
+     */
+    public boolean isAutoParameterize() {
+        return this.autoParameterize;
+    }
+
+    /**
+     * @return number of the most used statements prepared on new connections.
+     */
+    public int getPstmtPrepareTop() {
+        return this.pstmtPrepareTop;
+    }
+
+    /**
+     * @return the SQL of the statements prepared on the connections opened by
+     *         the pool.
+     */
+    public String[] getWarmStatements() {
+        return this.warmStatements.clone();
+    }
 
     /**
      * @return the test statement used with a checkedlevel.
@@ -25,15 +25,17 @@
 
 package com.peergreen.jdbcpool;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
@@ -54,13 +56,44 @@ import org.ow2.util.log.LogFactory;
  * @author Philippe Durieux
  * @author Florent Benoit
  */
-public class JManagedConnection implements Comparable, XAConnection, XAResource, Synchronization {
+public class JManagedConnection implements XAConnection, XAResource, Synchronization {
 
     /**
      * Logger.
      */
     private static Log logger = LogFactory.getLog(JManagedConnection.class);
 
+    /**
+     * State of a connection available in the pool.
+     */
+    public static final int STATE_NOT_IN_USE = 0;
+
+    /**
+     * State of a connection claimed by a borrower.
+     */
+    public static final int STATE_IN_USE = 1;
+
+    /**
+     * State of a connection removed from the pool.
+     */
+    public static final int STATE_REMOVED = -1;
+
+    /**
+     * State of a connection reserved by the pool itself (checks, eviction).
+     */
+    public static final int STATE_RESERVED = -2;
+
+    /**
+     * Pool state of this connection. Borrowers claim an idle connection with a
+     * CAS from STATE_NOT_IN_USE to STATE_IN_USE.
+     */
+    private final AtomicInteger state = new AtomicInteger(STATE_NOT_IN_USE);
+
+    /**
+     * True while this connection has an entry in the idle queue of the pool.
+     */
+    private final AtomicBoolean idleQueued = new AtomicBoolean();
+
     /**
      * Connection to the database.
      */
@@ -72,14 +105,23 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
     private Connection implConn = null;
 
     /**
-     * Maximum of prepared statements.
+     * Maximum of prepared statements, applied to the cache.
      */
     private int pstmtmax = 0;
 
     /**
-     * Current number of opened prepared statements.
+     * Maximum of prepared statements requested by the pool, applied by the
+     * owner of the connection the next time it uses the cache.
      */
-    private int psOpenNb = 0;
+    private volatile int pstmtmaxRequest = 0;
+
+    /**
+     * Statements given to the user and not closed yet, cached or not. Closing
+     * the connection only looks at them. JStatement.equals() compares the
+     * keys, so this is an identity set. Used by the owner only, like psCache.
+     */
+    private final Set<JStatement> openStatements = Collections.newSetFromMap(
+            new IdentityHashMap<JStatement, Boolean>());
 
     /**
      * Event listeners (of PooledConnection).
@@ -101,10 +143,15 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      */
     private Transaction tx = null;
 
+    /**
+     * The XAResource has been delisted from the transaction after an error.
+     */
+    private boolean delisted = false;
+
     /**
      * Counter of all managed connections created.
      */
-    private static int objcount = 0;
+    private static final AtomicInteger OBJCOUNT = new AtomicInteger();
 
     /**
      * Identifier of this connection.
@@ -117,15 +164,24 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
     private int reUsedPreparedStatements = 0;
 
     /**
-     * List of PreparedStatement in the pool.
+     * Cache of PreparedStatement. It is not locked: only the owner of the
+     * connection uses it, that is the borrower while the connection is in
+     * use, or the pool thread which has reserved it or is creating it. The
+     * state CAS of the bag hands it from an owner to the next one. Other
+     * threads only read its statistics and look it up (isCached).
      */
-    private Map<String, JStatement> psList = null;
+    private StatementCache psCache = null;
 
     /**
      * Link to the connection manager.
      */
     private ConnectionManager ds = null;
 
+    /**
+     * Generation of the pool when this connection was opened.
+     */
+    private int generation = 0;
+
     /**
      * Time of the death for this connection.
      */
@@ -136,6 +192,13 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      */
     private long closeTime = 0;
 
+    /**
+     * Time of the last known good use of this connection: creation, return
+     * to the pool or successful check. Read by the keeper while the
+     * connection is idle.
+     */
+    private volatile long lastUsedTime = 0;
+
 
     /**
      * Builds a new managed connection on a JDBC connection.
@@ -150,14 +213,16 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
         this.implConn = new JConnection(this, physicalConnection);
 
         open = 0;
-        deathTime = System.currentTimeMillis() + ds.getMaxAgeMilli();
+        lastUsedTime = System.currentTimeMillis();
+        deathTime = lastUsedTime + ds.getConnectionLifetime();
 
-        identifier = objcount++;
+        identifier = OBJCOUNT.getAndIncrement();
+        generation = ds.getGeneration();
 
         // Prepared statement.
         pstmtmax = ds.getPstmtMax();
-        psOpenNb = 0;
-        psList = Collections.synchronizedMap(new HashMap<String, JStatement>());
+        pstmtmaxRequest = pstmtmax;
+        psCache = new StatementCache(pstmtmax);
 
     }
 
@@ -169,13 +234,108 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
     }
 
     /**
-     * Dynamically change the prepared statement pool size.
+     * @return the generation of the pool when this connection was opened.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param generation the generation of the pool when this connection was
+     *        opened (set before the connection is published in the pool)
+     */
+    public void setGeneration(final int generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * @return the pool state of this connection.
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Sets the pool state of this connection.
+     * @param newState the new state
+     */
+    public void setState(final int newState) {
+        state.set(newState);
+    }
+
+    /**
+     * Atomically sets the pool state if the current state is the expected one.
+     * @param expect the expected state
+     * @param update the new state
+     * @return true if the state has been changed
+     */
+    public boolean compareAndSetState(final int expect, final int update) {
+        return state.compareAndSet(expect, update);
+    }
+
+    /**
+     * Atomically sets the idle queue flag if the current value is the expected
+     * one.
+     * @param expect the expected value
+     * @param update the new value
+     * @return true if the flag has been changed
+     */
+    public boolean compareAndSetIdleQueued(final boolean expect, final boolean update) {
+        return idleQueued.compareAndSet(expect, update);
+    }
+
+    /**
+     * @return true if the SQL of the Statements must be parameterized and
+     *         executed with cached statements.
+     */
+    public boolean isAutoParameterize() {
+        return pstmtmax > 0 && ds.isAutoParameterize();
+    }
+
+    /**
+     * @param sql a parameterized SQL
+     * @return true if the database has refused to prepare it.
+     */
+    public boolean isPlainOnly(final String sql) {
+        return ds.isPlainOnly(sql);
+    }
+
+    /**
+     * Remembers that the database has refused to prepare a parameterized SQL:
+     * the SQL giving it will be executed as is.
+     * @param sql the parameterized SQL
+     */
+    public void setPlainOnly(final String sql) {
+        ds.setPlainOnly(sql);
+    }
+
+    /**
+     * @param e an error of this connection
+     * @return true if the error means that the database connection is lost.
+     */
+    public boolean isFatal(final SQLException e) {
+        return ds.getErrorClassifier().isFatal(e);
+    }
+
+    /**
+     * Dynamically change the prepared statement pool size. May be called by
+     * any thread: the cache is resized by the owner of the connection the
+     * next time it uses it.
      * @param max the maximum of prepared statement.
      */
     public void setPstmtMax(final int max) {
-        pstmtmax = max;
-        if (psList == null) {
-            psList = Collections.synchronizedMap(new HashMap<String, JStatement>(pstmtmax));
+        pstmtmaxRequest = max;
+    }
+
+    /**
+     * Applies the size of the statement cache requested by the pool. Called
+     * by the owner of the connection.
+     */
+    private void applyPstmtMax() {
+        int max = pstmtmaxRequest;
+        if (max != pstmtmax) {
+            pstmtmax = max;
+            psCache.setMax(max);
         }
     }
 
@@ -352,25 +512,32 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
     }
 
     /**
-     * Compares this object with another specified object.
-     * @param o the object to compare
-     * @return a value detecting if these objects are matching or not.
+     * @return value of reused prepared statement.
      */
-    @Override
-    public int compareTo(final Object o) {
-        JManagedConnection other = (JManagedConnection) o;
-        int diff = getReUsedPreparedStatements() - other.getReUsedPreparedStatements();
-        if (diff == 0) {
-            return getIdentifier() - other.getIdentifier();
-        }
-        return diff;
+    public int getReUsedPreparedStatements() {
+        return reUsedPreparedStatements;
     }
 
     /**
-     * @return value of reused prepared statement.
+     * @return number of prepared statements found in the cache. Read without
+     *         synchronization: it may be late if the connection is in use.
      */
-    public int getReUsedPreparedStatements() {
-        return reUsedPreparedStatements;
+    public long getPstmtHits() {
+        return psCache.getHits();
+    }
+
+    /**
+     * @return number of prepared statements not found in the cache.
+     */
+    public long getPstmtMisses() {
+        return psCache.getMisses();
+    }
+
+    /**
+     * @return number of prepared statements evicted from the cache.
+     */
+    public long getPstmtEvictions() {
+        return psCache.getEvictions();
     }
 
     /**
@@ -448,6 +615,20 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
         return (deathTime < System.currentTimeMillis());
     }
 
+    /**
+     * @return time of the last known good use of this connection, in ms.
+     */
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    /**
+     * @param time time of a good use of this connection, in ms
+     */
+    public void setLastUsedTime(final long time) {
+        lastUsedTime = time;
+    }
+
     /**
      * @return true if connection is still open
      */
@@ -509,6 +690,9 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      * @param tx Transaction
      */
     public void setTx(final Transaction tx) {
+        if (tx != this.tx) {
+            delisted = false;
+        }
         this.tx = tx;
     }
 
@@ -519,6 +703,22 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
         return tx;
     }
 
+    /**
+     * @return true if the XAResource has been delisted from the transaction
+     *         after an error.
+     */
+    public boolean isDelisted() {
+        return delisted;
+    }
+
+    /**
+     * @param delisted true if the XAResource has been delisted from the
+     *        transaction after an error.
+     */
+    public void setDelisted(final boolean delisted) {
+        this.delisted = delisted;
+    }
+
     /**
      * remove this item, ignoring exception on close.
      */
@@ -549,28 +749,40 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      */
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency)
             throws SQLException {
+        return prepareStatement(new StatementKey(sql, resultSetType, resultSetConcurrency));
+    }
 
-        logger.debug("sql = {0}", sql);
+    /**
+     * Try to find a PreparedStatement in the pool for the given sql and
+     * options.
+     * @param key the sql and the options of the prepared statement
+     * @return a preparestatement object
+     * @throws SQLException if an errors occurs on the database.
+     */
+    public PreparedStatement prepareStatement(final StatementKey key) throws SQLException {
+
+        logger.debug("sql = {0}", key);
+        applyPstmtMax();
         if (pstmtmax == 0) {
-            return physicalConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            return key.prepare(physicalConnection);
         }
-        JStatement ps = null;
-        synchronized (psList) {
-            ps = psList.get(sql);
-            if (ps != null) {
-                if (!ps.isClosed()) {
-                    logger.warn("reuse an open pstmt");
-                }
-                ps.reuse();
-                reUsedPreparedStatements++;
-            } else {
-                // Not found in cache. Create a new one.
-                PreparedStatement aps = physicalConnection.prepareStatement(sql, resultSetType, resultSetConcurrency);
-                ps = new JStatement(aps, this, sql);
-                psList.put(sql, ps);
+        SqlRegistry registry = ds.getSqlRegistry();
+        SqlRegistry.Entry entry = registry.use(key);
+        JStatement ps = psCache.take(key);
+        if (ps != null) {
+            ps.reuse();
+            reUsedPreparedStatements++;
+        } else {
+            // Not found in cache. Create a new one.
+            ps = newStatement(key);
+            // The uses are only summed on a miss
+            if (entry != null && entry.getUses() < ds.getPstmtAdmission()) {
+                logger.debug("Statement not used enough to be cached");
+            } else if (!psCache.put(ps)) {
+                logger.debug("Statement cache full of open statements, not cached");
             }
-            psOpenNb++;
         }
+        openStatements.add(ps);
         return ps;
     }
 
@@ -581,7 +793,74 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      * @return a given prepared statement.
      */
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
-        return prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        return prepareStatement(new StatementKey(sql));
+    }
+
+    /**
+     * Tells whether a statement is in the cache. May be called by any thread,
+     * the answer may be late if the connection is in use.
+     * @param key the SQL and options of the statement
+     * @return true if the statement is cached
+     */
+    public boolean isCached(final StatementKey key) {
+        return psCache.contains(key);
+    }
+
+    /**
+     * Prepares statements in the cache, before the connection is used. They
+     * are cached as closed statements, so they may be evicted. This stops when
+     * the cache is full.
+     * @param keys the keys of the statements, most useful first
+     * @return the number of statements prepared
+     */
+    public int prepareStatements(final List<StatementKey> keys) {
+        int prepared = 0;
+        applyPstmtMax();
+        try {
+            for (StatementKey key : keys) {
+                if (psCache.size() >= pstmtmax) {
+                    break;
+                }
+                if (psCache.contains(key)) {
+                    continue;
+                }
+                JStatement ps = newStatement(key);
+                ps.forceClose();
+                psCache.put(ps);
+                psCache.release(ps);
+                prepared++;
+            }
+        } catch (SQLException e) {
+            logger.warn("Cannot prepare statements on a new connection", e);
+        }
+        return prepared;
+    }
+
+    /**
+     * Prepares a new statement on the physical connection.
+     * @param key the sql and the options of the statement
+     * @return the statement wrapper
+     * @throws SQLException if an errors occurs on the database.
+     */
+    private JStatement newStatement(final StatementKey key) throws SQLException {
+        long start = System.nanoTime();
+        PreparedStatement aps = key.prepare(physicalConnection);
+        ds.getSqlRegistry().prepared(key, System.nanoTime() - start);
+        if (key.isCallable()) {
+            return new JCallableStatement((CallableStatement) aps, this, key);
+        }
+        return new JStatement(aps, this, key);
+    }
+
+    /**
+     * Try to find a CallableStatement in the pool for the given sql and
+     * options. CallableStatements share the cache of the PreparedStatements.
+     * @param key the sql and the options of the callable statement
+     * @return a callable statement object
+     * @throws SQLException if an errors occurs on the database.
+     */
+    public CallableStatement prepareCall(final StatementKey key) throws SQLException {
+        return (CallableStatement) prepareStatement(key);
     }
 
     /**
@@ -590,22 +869,24 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
      */
     public void notifyPsClose(final JStatement ps) {
         logger.debug(ps.getSql());
-        synchronized (psList) {
-            psOpenNb--;
-            if (psList.size() >= pstmtmax) {
-                // Choose a closed element to remove.
-                JStatement lru = null;
-                Iterator i = psList.values().iterator();
-                while (i.hasNext()) {
-                    lru = (JStatement) i.next();
-                    if (lru.isClosed()) {
-                        // actually, remove the first closed element.
-                        i.remove();
-                        lru.forget();
-                        break;
-                    }
-                }
-            }
+        if (openStatements.remove(ps)) {
+            closed(ps);
+        }
+    }
+
+    /**
+     * A statement is no longer used: it goes back to the cache, or is closed
+     * physically.
+     * @param ps the statement
+     */
+    private void closed(final JStatement ps) {
+        if (!ps.isReusable()) {
+            // Its state can't be reset, or the caller asked not to pool it
+            psCache.remove(ps);
+            ps.forget();
+        } else if (!psCache.release(ps)) {
+            // Not cached
+            ps.forget();
         }
     }
 
@@ -618,21 +899,13 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
         // Close all PreparedStatement not already closed
         // When a Connection has been closed, no PreparedStatement should
         // remain open. This can avoids lack of cursor on some databases.
-        synchronized (psList) {
-            if (psOpenNb > 0) {
-                JStatement jst = null;
-                Iterator i = psList.values().iterator();
-                while (i.hasNext()) {
-                    jst = (JStatement) i.next();
-                    if (jst.forceClose()) {
-                        psOpenNb--;
-                    }
-                }
-                if (psOpenNb != 0) {
-                    logger.warn("Bad psOpenNb value = {0}", psOpenNb);
-                    psOpenNb = 0;
-                }
+        if (!openStatements.isEmpty()) {
+            logger.debug("Closing {0} statements left open", openStatements.size());
+            for (JStatement jst : openStatements) {
+                jst.forceClose();
+                closed(jst);
             }
+            openStatements.clear();
         }
 
         // Notify event to listeners
@@ -654,6 +927,18 @@ public class JManagedConnection implements Comparable, XAConnection, XAResource,
         }
     }
 
+    /**
+     * Notify the error of a statement execution. Only an error meaning that
+     * the database connection is lost is an error of the connection: a
+     * constraint violation, a syntax error... concerns the caller only.
+     * @param ex the given exception
+     */
+    public void notifyStatementError(final SQLException ex) {
+        if (isFatal(ex)) {
+            notifyError(ex);
+        }
+    }
+
     @Override
     public void addStatementEventListener(StatementEventListener listener) {
 
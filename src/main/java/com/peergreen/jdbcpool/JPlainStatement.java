@@ -0,0 +1,1039 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * Statement given by Connection.createStatement() when the pool parameterizes
+ * the literal SQL (autoParameterize). It reports the errors of its executions
+ * to the pool. Each SQL is parameterized (see ParameterizedSql) and executed
+ * with a PreparedStatement of the statement cache, so that the queries built
+ * with literals are parsed once by the database. The SQL which can't be
+ * parameterized, the batches and the statements with a cursor name are
+ * executed as is with a physical Statement. This Statement is only created when first needed, with the
+ * options set so far. A parameterized SQL which the database refuses to
+ * prepare or to execute is no longer parameterized: its literal SQL is
+ * executed as is.
+ * <p>
+ * The PreparedStatement of an execution stays open until an execution of
+ * another SQL or the close of this statement, like the result sets of a
+ * Statement. A loop executing the same SQL with different literals keeps its
+ * PreparedStatement.
+ */
+public class JPlainStatement implements Statement {
+
+    /**
+     * Options not set by the user.
+     */
+    private static final int UNSET = StatementKey.UNSET;
+
+    /**
+     * Connection which created this statement.
+     */
+    private final Connection connection;
+
+    /**
+     * Managed connection holding the statement cache.
+     */
+    private final JManagedConnection mc;
+
+    /**
+     * Physical connection.
+     */
+    private final Connection physicalConnection;
+
+    /**
+     * Type of the result sets.
+     */
+    private final int resultSetType;
+
+    /**
+     * Concurrency of the result sets.
+     */
+    private final int resultSetConcurrency;
+
+    /**
+     * Holdability of the result sets, UNSET for the connection default.
+     */
+    private final int resultSetHoldability;
+
+    /**
+     * Physical statement, created when first needed.
+     */
+    private Statement statement = null;
+
+    /**
+     * Statement of the last execution, still open.
+     */
+    private PreparedStatement prepared = null;
+
+    /**
+     * Key of the statement of the last execution.
+     */
+    private StatementKey preparedKey = null;
+
+    /**
+     * Statement holding the results of the last execution.
+     */
+    private Statement current = null;
+
+    /**
+     * SQL is no longer parameterized (cursor name, close on completion).
+     */
+    private boolean plainOnly = false;
+
+    /**
+     * Statement closed by the user.
+     */
+    private boolean closed = false;
+
+    /**
+     * Fetch direction set by the user, applied to each PreparedStatement.
+     */
+    private int fetchDirection = UNSET;
+
+    /**
+     * Fetch size set by the user, applied to each PreparedStatement.
+     */
+    private int fetchSize = UNSET;
+
+    /**
+     * Max field size set by the user, applied to each PreparedStatement.
+     */
+    private int maxFieldSize = UNSET;
+
+    /**
+     * Max rows set by the user, applied to each PreparedStatement.
+     */
+    private int maxRows = UNSET;
+
+    /**
+     * Query timeout set by the user, applied to each PreparedStatement.
+     */
+    private int queryTimeout = UNSET;
+
+    /**
+     * Escape processing set by the user, applied to each PreparedStatement.
+     */
+    private Boolean escapeProcessing = null;
+
+    /**
+     * Poolable hint set by the user, applied to the physical Statement only.
+     */
+    private Boolean poolable = null;
+
+    /**
+     * Builds a statement which parameterizes its SQL.
+     * @param connection the connection given to the user
+     * @param mc the managed connection
+     * @param physicalConnection the physical connection
+     * @param resultSetType the type of the result sets
+     * @param resultSetConcurrency the concurrency of the result sets
+     * @param resultSetHoldability the holdability of the result sets or UNSET
+     */
+    public JPlainStatement(final Connection connection, final JManagedConnection mc,
+            final Connection physicalConnection, final int resultSetType, final int resultSetConcurrency,
+            final int resultSetHoldability) {
+        this.connection = connection;
+        this.mc = mc;
+        this.physicalConnection = physicalConnection;
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.resultSetHoldability = resultSetHoldability;
+    }
+
+    /**
+     * @return the physical statement, created with the options set so far if
+     *         needed.
+     * @throws SQLException if the statement is closed or can't be created
+     */
+    private Statement plain() throws SQLException {
+        checkOpen();
+        if (statement == null) {
+            Statement st;
+            if (resultSetHoldability != UNSET) {
+                st = physicalConnection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+            } else {
+                st = physicalConnection.createStatement(resultSetType, resultSetConcurrency);
+            }
+            try {
+                applyOptions(st);
+                if (poolable != null) {
+                    st.setPoolable(poolable.booleanValue());
+                }
+            } catch (SQLException e) {
+                st.close();
+                throw e;
+            }
+            statement = st;
+        }
+        return statement;
+    }
+
+    /**
+     * Sets the options given by the user on a physical statement.
+     * @param st the statement
+     * @throws SQLException if an option can't be set
+     */
+    private void applyOptions(final Statement st) throws SQLException {
+        if (fetchDirection != UNSET) {
+            st.setFetchDirection(fetchDirection);
+        }
+        if (fetchSize != UNSET) {
+            st.setFetchSize(fetchSize);
+        }
+        if (maxFieldSize != UNSET) {
+            st.setMaxFieldSize(maxFieldSize);
+        }
+        if (maxRows != UNSET) {
+            st.setMaxRows(maxRows);
+        }
+        if (queryTimeout != UNSET) {
+            st.setQueryTimeout(queryTimeout);
+        }
+        if (escapeProcessing != null) {
+            st.setEscapeProcessing(escapeProcessing.booleanValue());
+        }
+    }
+
+    /**
+     * @return the physical statement used so far (the physical Statement
+     *         first), null if none: the options not set by the user are read
+     *         from it.
+     */
+    private Statement physical() {
+        if (statement != null) {
+            return statement;
+        }
+        return prepared;
+    }
+
+    /**
+     * Prepares the physical statement for an execution of literal SQL.
+     * @return the physical statement
+     * @throws SQLException if the statement is closed or can't be created
+     */
+    private Statement executePlain() throws SQLException {
+        closePrepared();
+        current = plain();
+        return current;
+    }
+
+    /**
+     * @param sql the SQL given by the user
+     * @return the parameterized SQL, null if it must be executed as is
+     */
+    private ParameterizedSql parameterize(final String sql) {
+        if (plainOnly || !mc.isAutoParameterize()) {
+            return null;
+        }
+        ParameterizedSql psql = ParameterizedSql.parse(sql);
+        if (psql == null || mc.isPlainOnly(psql.getSql())) {
+            return null;
+        }
+        return psql;
+    }
+
+    /**
+     * Takes a statement from the cache for an execution, and binds its
+     * values. If the database refuses to prepare the parameterized SQL, it is
+     * no longer parameterized: the literal SQL may still be valid.
+     * @param psql the parameterized SQL
+     * @param key the key of the statement
+     * @return the statement, ready for execution, null if the SQL must be
+     *         executed as is
+     * @throws SQLException if the statement can't be prepared
+     */
+    private PreparedStatement executePrepared(final ParameterizedSql psql, final StatementKey key)
+            throws SQLException {
+        checkOpen();
+        if (prepared != null && key.equals(preparedKey)) {
+            // same SQL again: the statement is still ours
+            current = prepared;
+            psql.bind(prepared);
+            return prepared;
+        }
+        closePrepared();
+        PreparedStatement ps;
+        try {
+            ps = mc.prepareStatement(key);
+        } catch (SQLException e) {
+            if (mc.isFatal(e)) {
+                mc.notifyError(e);
+                throw e;
+            }
+            // A bind variable where the database wants a literal
+            mc.setPlainOnly(psql.getSql());
+            return null;
+        }
+        prepared = ps;
+        preparedKey = key;
+        current = ps;
+        applyOptions(ps);
+        psql.bind(ps);
+        return ps;
+    }
+
+    /**
+     * @param sql the parameterized SQL
+     * @return the key of its statement, with the options of this statement.
+     */
+    private StatementKey keyOf(final String sql) {
+        return new StatementKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    /**
+     * Closes the statement of the last execution: it goes back to the cache.
+     * @throws SQLException if the statement can't be closed
+     */
+    private void closePrepared() throws SQLException {
+        if (prepared != null) {
+            PreparedStatement ps = prepared;
+            prepared = null;
+            preparedKey = null;
+            if (current == ps) {
+                current = null;
+            }
+            ps.close();
+        }
+    }
+
+    /**
+     * An execution of the SQL given by the user.
+     * @param <T> the type of the result
+     */
+    private abstract static class Execution<T> {
+
+        /**
+         * @param ps the statement of the parameterized SQL, values bound
+         * @return the result of the execution
+         * @throws SQLException if the execution fails
+         */
+        abstract T prepared(PreparedStatement ps) throws SQLException;
+
+        /**
+         * @param st the physical statement, executing the literal SQL
+         * @return the result of the execution
+         * @throws SQLException if the execution fails
+         */
+        abstract T plain(Statement st) throws SQLException;
+    }
+
+    /**
+     * Executes the SQL given by the user, parameterized if possible. The
+     * database may refuse a parameterized SQL only when executing it (type
+     * of a bind variable, literal needed by the planner...): the literal SQL
+     * is then executed, and no longer parameterized if it works.
+     * @param psql the parameterized SQL, null to execute the literal SQL
+     * @param key the key of the statement of the parameterized SQL
+     * @param execution the execution
+     * @param <T> the type of the result
+     * @return the result of the execution
+     * @throws SQLException if the execution fails
+     */
+    private <T> T execute(final ParameterizedSql psql, final StatementKey key, final Execution<T> execution)
+            throws SQLException {
+        PreparedStatement ps = psql == null ? null : executePrepared(psql, key);
+        SQLException refused = null;
+        if (ps != null) {
+            try {
+                // reports its fatal errors
+                return execution.prepared(ps);
+            } catch (SQLException e) {
+                if (mc.isFatal(e)) {
+                    throw e;
+                }
+                refused = e;
+            }
+        }
+        T result;
+        try {
+            result = execution.plain(executePlain());
+        } catch (SQLException e) {
+            if (refused != null) {
+                // Not a matter of bind variables
+                e.addSuppressed(refused);
+            }
+            mc.notifyStatementError(e);
+            throw e;
+        }
+        if (refused != null) {
+            mc.setPlainOnly(psql.getSql());
+        }
+        return result;
+    }
+
+    /**
+     * @throws SQLException if the statement is closed.
+     */
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+    }
+
+    /**
+     * @return the statement holding the results of the last execution, null
+     *         if nothing has been executed.
+     * @throws SQLException if the statement is closed
+     */
+    private Statement current() throws SQLException {
+        checkOpen();
+        return current;
+    }
+
+    /**
+     * @param value the value of an option
+     * @param name the name of the option
+     * @throws SQLException if the value is negative
+     */
+    private static void checkNotNegative(final int value, final String name) throws SQLException {
+        if (value < 0) {
+            throw new SQLException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet executeQuery(final String sql) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : keyOf(psql.getSql()), new Execution<ResultSet>() {
+            @Override
+            ResultSet prepared(final PreparedStatement ps) throws SQLException {
+                return ps.executeQuery();
+            }
+
+            @Override
+            ResultSet plain(final Statement st) throws SQLException {
+                return st.executeQuery(sql);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public int executeUpdate(final String sql) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : keyOf(psql.getSql()), new Execution<Integer>() {
+            @Override
+            Integer prepared(final PreparedStatement ps) throws SQLException {
+                return ps.executeUpdate();
+            }
+
+            @Override
+            Integer plain(final Statement st) throws SQLException {
+                return st.executeUpdate(sql);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public int executeUpdate(final String sql, final int autoGeneratedKeys) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), autoGeneratedKeys), new Execution<Integer>() {
+            @Override
+            Integer prepared(final PreparedStatement ps) throws SQLException {
+                return ps.executeUpdate();
+            }
+
+            @Override
+            Integer plain(final Statement st) throws SQLException {
+                return st.executeUpdate(sql, autoGeneratedKeys);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public int executeUpdate(final String sql, final int[] columnIndexes) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), columnIndexes), new Execution<Integer>() {
+            @Override
+            Integer prepared(final PreparedStatement ps) throws SQLException {
+                return ps.executeUpdate();
+            }
+
+            @Override
+            Integer plain(final Statement st) throws SQLException {
+                return st.executeUpdate(sql, columnIndexes);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public int executeUpdate(final String sql, final String[] columnNames) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), columnNames), new Execution<Integer>() {
+            @Override
+            Integer prepared(final PreparedStatement ps) throws SQLException {
+                return ps.executeUpdate();
+            }
+
+            @Override
+            Integer plain(final Statement st) throws SQLException {
+                return st.executeUpdate(sql, columnNames);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public boolean execute(final String sql) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : keyOf(psql.getSql()), new Execution<Boolean>() {
+            @Override
+            Boolean prepared(final PreparedStatement ps) throws SQLException {
+                return ps.execute();
+            }
+
+            @Override
+            Boolean plain(final Statement st) throws SQLException {
+                return st.execute(sql);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public boolean execute(final String sql, final int autoGeneratedKeys) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), autoGeneratedKeys), new Execution<Boolean>() {
+            @Override
+            Boolean prepared(final PreparedStatement ps) throws SQLException {
+                return ps.execute();
+            }
+
+            @Override
+            Boolean plain(final Statement st) throws SQLException {
+                return st.execute(sql, autoGeneratedKeys);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public boolean execute(final String sql, final int[] columnIndexes) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), columnIndexes), new Execution<Boolean>() {
+            @Override
+            Boolean prepared(final PreparedStatement ps) throws SQLException {
+                return ps.execute();
+            }
+
+            @Override
+            Boolean plain(final Statement st) throws SQLException {
+                return st.execute(sql, columnIndexes);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public boolean execute(final String sql, final String[] columnNames) throws SQLException {
+        ParameterizedSql psql = parameterize(sql);
+        return execute(psql, psql == null ? null : new StatementKey(psql.getSql(), columnNames), new Execution<Boolean>() {
+            @Override
+            Boolean prepared(final PreparedStatement ps) throws SQLException {
+                return ps.execute();
+            }
+
+            @Override
+            Boolean plain(final Statement st) throws SQLException {
+                return st.execute(sql, columnNames);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBatch(final String sql) throws SQLException {
+        plain().addBatch(sql);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearBatch() throws SQLException {
+        plain().clearBatch();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] executeBatch() throws SQLException {
+        try {
+            return executePlain().executeBatch();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the physical statement, and gives back the PreparedStatement of
+     * the last execution to the cache.
+     * @throws SQLException if a statement can't be closed
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            closePrepared();
+        } finally {
+            current = null;
+            if (statement != null) {
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            return null;
+        }
+        return st.getResultSet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUpdateCount() throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            return -1;
+        }
+        return st.getUpdateCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            return false;
+        }
+        return st.getMoreResults();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getMoreResults(final int flag) throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            return false;
+        }
+        return st.getMoreResults(flag);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            // empty result set of the driver
+            return plain().getGeneratedKeys();
+        }
+        return st.getGeneratedKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        Statement st = current();
+        if (st == null) {
+            return null;
+        }
+        return st.getWarnings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearWarnings() throws SQLException {
+        Statement st = current();
+        if (st != null) {
+            st.clearWarnings();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel() throws SQLException {
+        Statement st = current();
+        if (st != null) {
+            st.cancel();
+        }
+    }
+
+    /**
+     * The SQL of this statement is no longer parameterized: a cursor name
+     * can't be given to the cached statements.
+     * @param name the cursor name
+     * @throws SQLException if the name can't be set
+     */
+    @Override
+    public void setCursorName(final String name) throws SQLException {
+        plainOnly = true;
+        plain().setCursorName(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        checkOpen();
+        if (maxFieldSize != UNSET) {
+            return maxFieldSize;
+        }
+        Statement st = physical();
+        if (st == null) {
+            return 0;
+        }
+        return st.getMaxFieldSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxFieldSize(final int max) throws SQLException {
+        checkOpen();
+        checkNotNegative(max, "max field size");
+        if (statement != null) {
+            statement.setMaxFieldSize(max);
+        }
+        if (prepared != null) {
+            prepared.setMaxFieldSize(max);
+        }
+        maxFieldSize = max;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxRows() throws SQLException {
+        checkOpen();
+        if (maxRows != UNSET) {
+            return maxRows;
+        }
+        Statement st = physical();
+        if (st == null) {
+            return 0;
+        }
+        return st.getMaxRows();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxRows(final int max) throws SQLException {
+        checkOpen();
+        checkNotNegative(max, "max rows");
+        if (statement != null) {
+            statement.setMaxRows(max);
+        }
+        if (prepared != null) {
+            prepared.setMaxRows(max);
+        }
+        maxRows = max;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEscapeProcessing(final boolean enable) throws SQLException {
+        checkOpen();
+        if (statement != null) {
+            statement.setEscapeProcessing(enable);
+        }
+        if (prepared != null) {
+            prepared.setEscapeProcessing(enable);
+        }
+        escapeProcessing = Boolean.valueOf(enable);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        checkOpen();
+        if (queryTimeout != UNSET) {
+            return queryTimeout;
+        }
+        Statement st = physical();
+        if (st == null) {
+            return 0;
+        }
+        return st.getQueryTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setQueryTimeout(final int seconds) throws SQLException {
+        checkOpen();
+        checkNotNegative(seconds, "query timeout");
+        if (statement != null) {
+            statement.setQueryTimeout(seconds);
+        }
+        if (prepared != null) {
+            prepared.setQueryTimeout(seconds);
+        }
+        queryTimeout = seconds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getFetchDirection() throws SQLException {
+        checkOpen();
+        if (fetchDirection != UNSET) {
+            return fetchDirection;
+        }
+        Statement st = physical();
+        if (st == null) {
+            return ResultSet.FETCH_FORWARD;
+        }
+        return st.getFetchDirection();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFetchDirection(final int direction) throws SQLException {
+        checkOpen();
+        if (direction != ResultSet.FETCH_FORWARD && direction != ResultSet.FETCH_REVERSE
+                && direction != ResultSet.FETCH_UNKNOWN) {
+            throw new SQLException("Invalid fetch direction: " + direction);
+        }
+        if (statement != null) {
+            statement.setFetchDirection(direction);
+        }
+        if (prepared != null) {
+            prepared.setFetchDirection(direction);
+        }
+        fetchDirection = direction;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getFetchSize() throws SQLException {
+        checkOpen();
+        if (fetchSize != UNSET) {
+            return fetchSize;
+        }
+        Statement st = physical();
+        if (st == null) {
+            return 0;
+        }
+        return st.getFetchSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFetchSize(final int rows) throws SQLException {
+        checkOpen();
+        checkNotNegative(rows, "fetch size");
+        if (statement != null) {
+            statement.setFetchSize(rows);
+        }
+        if (prepared != null) {
+            prepared.setFetchSize(rows);
+        }
+        fetchSize = rows;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return resultSetConcurrency;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetType() throws SQLException {
+        return resultSetType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        checkOpen();
+        if (resultSetHoldability != UNSET) {
+            return resultSetHoldability;
+        }
+        if (statement != null) {
+            return statement.getResultSetHoldability();
+        }
+        return physicalConnection.getHoldability();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPoolable(final boolean poolable) throws SQLException {
+        checkOpen();
+        if (statement != null) {
+            statement.setPoolable(poolable);
+        }
+        this.poolable = Boolean.valueOf(poolable);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPoolable() throws SQLException {
+        checkOpen();
+        if (poolable != null) {
+            return poolable.booleanValue();
+        }
+        // A Statement is not poolable by default
+        return statement != null && statement.isPoolable();
+    }
+
+    /**
+     * The SQL of this statement is no longer parameterized: this statement
+     * must be closed with the result sets of the physical statement.
+     * @throws SQLException if the physical statement doesn't support it
+     */
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        plainOnly = true;
+        plain().closeOnCompletion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        checkOpen();
+        return statement != null && statement.isCloseOnCompletion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return plain().unwrap(iface);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || plain().isWrapperFor(iface);
+    }
+}
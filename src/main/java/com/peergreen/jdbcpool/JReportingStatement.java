@@ -0,0 +1,462 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * Statement given by Connection.createStatement() when the literal SQL is not
+ * parameterized (see JPlainStatement). It only reports the errors of its
+ * executions to the pool, everything else is done by the physical Statement.
+ */
+public class JReportingStatement implements Statement {
+
+    /**
+     * Physical statement.
+     */
+    private final Statement statement;
+
+    /**
+     * Managed connection receiving the errors.
+     */
+    private final JManagedConnection mc;
+
+    /**
+     * Connection which created this statement.
+     */
+    private final Connection connection;
+
+    /**
+     * Builds a statement reporting the errors of a physical statement.
+     * @param statement the physical statement
+     * @param mc the managed connection
+     * @param connection the connection given to the user
+     */
+    public JReportingStatement(final Statement statement, final JManagedConnection mc, final Connection connection) {
+        this.statement = statement;
+        this.mc = mc;
+        this.connection = connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet executeQuery(final String sql) throws SQLException {
+        try {
+            return statement.executeQuery(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int executeUpdate(final String sql) throws SQLException {
+        try {
+            return statement.executeUpdate(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int executeUpdate(final String sql, final int autoGeneratedKeys) throws SQLException {
+        try {
+            return statement.executeUpdate(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int executeUpdate(final String sql, final int[] columnIndexes) throws SQLException {
+        try {
+            return statement.executeUpdate(sql, columnIndexes);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int executeUpdate(final String sql, final String[] columnNames) throws SQLException {
+        try {
+            return statement.executeUpdate(sql, columnNames);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean execute(final String sql) throws SQLException {
+        try {
+            return statement.execute(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean execute(final String sql, final int autoGeneratedKeys) throws SQLException {
+        try {
+            return statement.execute(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean execute(final String sql, final int[] columnIndexes) throws SQLException {
+        try {
+            return statement.execute(sql, columnIndexes);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean execute(final String sql, final String[] columnNames) throws SQLException {
+        try {
+            return statement.execute(sql, columnNames);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] executeBatch() throws SQLException {
+        try {
+            return statement.executeBatch();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBatch(final String sql) throws SQLException {
+        statement.addBatch(sql);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearBatch() throws SQLException {
+        statement.clearBatch();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws SQLException {
+        statement.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed() throws SQLException {
+        return statement.isClosed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return statement.getResultSet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return statement.getUpdateCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return statement.getMoreResults();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getMoreResults(final int current) throws SQLException {
+        return statement.getMoreResults(current);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return statement.getGeneratedKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return statement.getWarnings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearWarnings() throws SQLException {
+        statement.clearWarnings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel() throws SQLException {
+        statement.cancel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCursorName(final String name) throws SQLException {
+        statement.setCursorName(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return statement.getMaxFieldSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxFieldSize(final int max) throws SQLException {
+        statement.setMaxFieldSize(max);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxRows() throws SQLException {
+        return statement.getMaxRows();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMaxRows(final int max) throws SQLException {
+        statement.setMaxRows(max);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEscapeProcessing(final boolean enable) throws SQLException {
+        statement.setEscapeProcessing(enable);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return statement.getQueryTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setQueryTimeout(final int seconds) throws SQLException {
+        statement.setQueryTimeout(seconds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return statement.getFetchDirection();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFetchDirection(final int direction) throws SQLException {
+        statement.setFetchDirection(direction);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getFetchSize() throws SQLException {
+        return statement.getFetchSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFetchSize(final int rows) throws SQLException {
+        statement.setFetchSize(rows);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return statement.getResultSetConcurrency();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetType() throws SQLException {
+        return statement.getResultSetType();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return statement.getResultSetHoldability();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPoolable(final boolean poolable) throws SQLException {
+        statement.setPoolable(poolable);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return statement.isPoolable();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        statement.closeOnCompletion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return statement.isCloseOnCompletion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return statement.unwrap(iface);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || statement.isWrapperFor(iface);
+    }
+}
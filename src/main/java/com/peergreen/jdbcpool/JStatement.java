@@ -61,9 +61,95 @@ import org.ow2.util.log.LogFactory;
 public class JStatement implements PreparedStatement {
 
     /**
-     * Properties of this statement has been changed ? Needs to be be cleared when reused.
+     * Parameters have been set.
      */
-    private boolean changed = false;
+    private static final int PARAMETERS = 1;
+
+    /**
+     * The statement has been executed: it may have warnings.
+     */
+    private static final int WARNINGS = 1 << 1;
+
+    /**
+     * Commands have been added to the batch.
+     */
+    private static final int BATCH = 1 << 2;
+
+    /**
+     * Fetch direction changed.
+     */
+    private static final int FETCH_DIRECTION = 1 << 3;
+
+    /**
+     * Fetch size changed.
+     */
+    private static final int FETCH_SIZE = 1 << 4;
+
+    /**
+     * Max field size changed.
+     */
+    private static final int MAX_FIELD_SIZE = 1 << 5;
+
+    /**
+     * Max rows changed.
+     */
+    private static final int MAX_ROWS = 1 << 6;
+
+    /**
+     * Query timeout changed.
+     */
+    private static final int QUERY_TIMEOUT = 1 << 7;
+
+    /**
+     * Escape processing changed.
+     */
+    private static final int ESCAPE_PROCESSING = 1 << 8;
+
+    /**
+     * What has been changed since the statement was prepared or reused, and
+     * must be reset when it is reused.
+     */
+    private int dirty = 0;
+
+    /**
+     * Properties whose initial value has been saved.
+     */
+    private int saved = 0;
+
+    /**
+     * Initial fetch direction.
+     */
+    private int initialFetchDirection = ResultSet.FETCH_FORWARD;
+
+    /**
+     * Initial fetch size (driver dependent).
+     */
+    private int initialFetchSize = 0;
+
+    /**
+     * Initial max field size.
+     */
+    private int initialMaxFieldSize = 0;
+
+    /**
+     * Initial max rows.
+     */
+    private int initialMaxRows = 0;
+
+    /**
+     * Initial query timeout.
+     */
+    private int initialQueryTimeout = 0;
+
+    /**
+     * False if the caller asked not to pool this statement.
+     */
+    private boolean poolable = true;
+
+    /**
+     * False if a change can't be reset (cursor name, close on completion).
+     */
+    private boolean resettable = true;
 
     /**
      * Is that this statement is opened ?
@@ -86,14 +172,9 @@ public class JStatement implements PreparedStatement {
     private final JManagedConnection mc;
 
     /**
-     * Hashcode computed in constructor.
+     * Key of the statement in the cache: SQL and options.
      */
-    private final int hashCode;
-
-    /**
-     * SQL used as statement.
-     */
-    private final String sql;
+    private final StatementKey key;
 
     /**
      * Logger.
@@ -101,16 +182,15 @@ public class JStatement implements PreparedStatement {
     private final Log logger = LogFactory.getLog(JStatement.class);
 
     /**
-     * Builds a new statement with the given wrapped statement of given connection and given sql query.
+     * Builds a new statement with the given wrapped statement of given connection and given key.
      * @param ps the prepared statement.
      * @param mc managed connection
-     * @param sql query.
+     * @param key sql query and options.
      */
-    public JStatement(final PreparedStatement ps, final JManagedConnection mc, final String sql) {
+    public JStatement(final PreparedStatement ps, final JManagedConnection mc, final StatementKey key) {
         this.ps = ps;
         this.mc = mc;
-        this.sql = sql;
-        hashCode = sql.hashCode();
+        this.key = key;
         opened = true;
     }
 
@@ -118,7 +198,14 @@ public class JStatement implements PreparedStatement {
      * @return Sql query used.
      */
     public String getSql() {
-        return sql;
+        return key.getSql();
+    }
+
+    /**
+     * @return the key of this statement (sql query and options).
+     */
+    public StatementKey getKey() {
+        return key;
     }
 
     /**
@@ -126,7 +213,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int hashCode() {
-        return hashCode;
+        return key.hashCode();
     }
 
     /**
@@ -135,39 +222,10 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean equals(final Object stmt) {
-        if (stmt == null) {
-            return false;
-        }
-        // different hashcode, cannot be equals
-        if (this.hashCode != stmt.hashCode()) {
-            return false;
-        }
-
-        // if got same hashcode, try to see if cast is ok.
         if (!(stmt instanceof JStatement)) {
-            logger.warn("Bad class {0}", stmt);
-            return false;
-        }
-        JStatement psw = (JStatement) stmt;
-        if (sql == null && psw.getSql() != null) {
-            return false;
-        }
-        if (sql != null && !sql.equals(psw.getSql())) {
-            return false;
-        }
-        try {
-            if (psw.getResultSetType() != getResultSetType()) {
-                return false;
-            }
-            if (psw.getResultSetConcurrency() != getResultSetConcurrency()) {
-                return false;
-            }
-        } catch (SQLException e) {
-            logger.warn("Cannot compare statements", e);
             return false;
         }
-        logger.debug("Found");
-        return true;
+        return key.equals(((JStatement) stmt).getKey());
     }
 
     /**
@@ -185,22 +243,60 @@ public class JStatement implements PreparedStatement {
     }
 
     /**
-     * Reuses this statement so reset properties.
+     * Reuses this statement so reset properties. Only what has been changed
+     * by the previous user is reset, each property to its initial value.
      * @throws SQLException if reset fails
      */
     public void reuse() throws SQLException {
-        ps.clearParameters();
-        ps.clearWarnings();
+        if ((dirty & PARAMETERS) != 0) {
+            ps.clearParameters();
+        }
+        if ((dirty & WARNINGS) != 0) {
+            ps.clearWarnings();
+        }
         opened = true;
-        if (changed) {
+        if ((dirty & ~(PARAMETERS | WARNINGS)) != 0) {
             logger.debug("Properties statement have been changed, reset default properties");
-            ps.clearBatch();
-            ps.setFetchDirection(ResultSet.FETCH_FORWARD);
-            ps.setMaxFieldSize(0);
-            ps.setMaxRows(0);
-            ps.setQueryTimeout(0);
-            changed = false;
+            if ((dirty & BATCH) != 0) {
+                ps.clearBatch();
+            }
+            if ((dirty & FETCH_DIRECTION) != 0) {
+                ps.setFetchDirection(initialFetchDirection);
+            }
+            if ((dirty & FETCH_SIZE) != 0) {
+                ps.setFetchSize(initialFetchSize);
+            }
+            if ((dirty & MAX_FIELD_SIZE) != 0) {
+                ps.setMaxFieldSize(initialMaxFieldSize);
+            }
+            if ((dirty & MAX_ROWS) != 0) {
+                ps.setMaxRows(initialMaxRows);
+            }
+            if ((dirty & QUERY_TIMEOUT) != 0) {
+                ps.setQueryTimeout(initialQueryTimeout);
+            }
+            if ((dirty & ESCAPE_PROCESSING) != 0) {
+                // No getter: the default is true
+                ps.setEscapeProcessing(true);
+            }
         }
+        dirty = 0;
+    }
+
+    /**
+     * @return false if this statement must not be given again once closed:
+     *         the caller asked it, or it has been changed in a way that can't
+     *         be reset.
+     */
+    public boolean isReusable() {
+        return poolable && resettable;
+    }
+
+    /**
+     * Parameters have been set or registered: clear them on reuse.
+     */
+    protected void parametersChanged() {
+        dirty |= PARAMETERS;
     }
 
     /**
@@ -228,7 +324,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int executeUpdate() throws SQLException {
-        return ps.executeUpdate();
+        dirty |= WARNINGS;
+        try {
+            return ps.executeUpdate();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -236,7 +338,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void addBatch() throws SQLException {
-        changed = true;
+        dirty |= BATCH;
         ps.addBatch();
     }
 
@@ -246,6 +348,7 @@ public class JStatement implements PreparedStatement {
     @Override
     public void clearParameters() throws SQLException {
         ps.clearParameters();
+        dirty &= ~PARAMETERS;
     }
 
     /**
@@ -253,7 +356,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean execute() throws SQLException {
-        return ps.execute();
+        dirty |= WARNINGS;
+        try {
+            return ps.execute();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -261,6 +370,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setByte(final int parameterIndex, final byte x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setByte(parameterIndex, x);
     }
 
@@ -269,6 +379,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setDouble(final int parameterIndex, final double x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setDouble(parameterIndex, x);
     }
 
@@ -277,6 +388,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setFloat(final int parameterIndex, final float x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setFloat(parameterIndex, x);
     }
 
@@ -285,6 +397,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setInt(final int parameterIndex, final int x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setInt(parameterIndex, x);
     }
 
@@ -293,6 +406,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setNull(final int parameterIndex, final int sqlType) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNull(parameterIndex, sqlType);
     }
 
@@ -301,6 +415,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setLong(final int parameterIndex, final long x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setLong(parameterIndex, x);
     }
 
@@ -309,6 +424,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setShort(final int parameterIndex, final short x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setShort(parameterIndex, x);
     }
 
@@ -317,6 +433,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setBoolean(final int parameterIndex, final boolean x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBoolean(parameterIndex, x);
     }
 
@@ -325,6 +442,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setBytes(final int parameterIndex, final byte[] x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBytes(parameterIndex, x);
     }
 
@@ -333,6 +451,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setAsciiStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setAsciiStream(parameterIndex, x, length);
     }
 
@@ -341,6 +460,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setBinaryStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBinaryStream(parameterIndex, x, length);
     }
 
@@ -350,6 +470,7 @@ public class JStatement implements PreparedStatement {
     @Override
     @SuppressWarnings("deprecation")
     public void setUnicodeStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setUnicodeStream(parameterIndex, x, length);
     }
 
@@ -358,6 +479,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setCharacterStream(final int parameterIndex, final Reader reader, final int length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setCharacterStream(parameterIndex, reader, length);
     }
 
@@ -366,6 +488,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setObject(final int parameterIndex, final Object x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setObject(parameterIndex, x);
     }
 
@@ -374,6 +497,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setObject(final int parameterIndex, final Object x, final int targetSqlType) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setObject(parameterIndex, x, targetSqlType);
     }
 
@@ -383,6 +507,7 @@ public class JStatement implements PreparedStatement {
     @Override
     public void setObject(final int parameterIndex, final Object x,
             final int targetSqlType, final int scale) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setObject(parameterIndex, x, targetSqlType, scale);
     }
 
@@ -391,6 +516,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setNull(final int paramIndex, final int sqlType, final String typeName) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNull(paramIndex, sqlType, typeName);
     }
 
@@ -399,6 +525,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setString(final int parameterIndex, final String x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setString(parameterIndex, x);
     }
 
@@ -407,6 +534,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setBigDecimal(final int parameterIndex, final BigDecimal x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBigDecimal(parameterIndex, x);
     }
 
@@ -415,6 +543,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setURL(final int parameterIndex, final URL x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setURL(parameterIndex, x);
     }
 
@@ -423,6 +552,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setArray(final int i, final Array x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setArray(i, x);
     }
 
@@ -431,6 +561,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setBlob(final int i, final Blob x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBlob(i, x);
     }
 
@@ -439,6 +570,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setClob(final int i, final Clob x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setClob(i, x);
     }
 
@@ -447,6 +579,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setDate(final int parameterIndex, final Date x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setDate(parameterIndex, x);
     }
 
@@ -463,6 +596,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setRef(final int i, final Ref x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setRef(i, x);
     }
 
@@ -471,7 +605,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public ResultSet executeQuery() throws SQLException {
-        return ps.executeQuery();
+        dirty |= WARNINGS;
+        try {
+            return ps.executeQuery();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -487,6 +627,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setTime(final int parameterIndex, final Time x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setTime(parameterIndex, x);
     }
 
@@ -495,6 +636,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setTimestamp(final int parameterIndex, final Timestamp x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setTimestamp(parameterIndex, x);
     }
 
@@ -503,6 +645,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setDate(final int parameterIndex, final Date x, final Calendar cal) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setDate(parameterIndex, x, cal);
     }
 
@@ -511,6 +654,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setTime(final int parameterIndex, final Time x, final Calendar cal) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setTime(parameterIndex, x, cal);
     }
 
@@ -519,6 +663,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setTimestamp(final int parameterIndex, final Timestamp x, final Calendar cal) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setTimestamp(parameterIndex, x, cal);
     }
 
@@ -608,6 +753,7 @@ public class JStatement implements PreparedStatement {
     @Override
     public void clearBatch() throws SQLException {
         ps.clearBatch();
+        dirty &= ~BATCH;
     }
 
     /**
@@ -616,6 +762,7 @@ public class JStatement implements PreparedStatement {
     @Override
     public void clearWarnings() throws SQLException {
         ps.clearWarnings();
+        dirty &= ~WARNINGS;
     }
 
     /**
@@ -646,7 +793,17 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int[] executeBatch() throws SQLException {
-        return ps.executeBatch();
+        dirty |= WARNINGS;
+        int[] counts;
+        try {
+            counts = ps.executeBatch();
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
+        // The batch is now empty
+        dirty &= ~BATCH;
+        return counts;
     }
 
     /**
@@ -654,7 +811,11 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setFetchDirection(final int direction) throws SQLException {
-        changed = true;
+        if ((saved & FETCH_DIRECTION) == 0) {
+            initialFetchDirection = ps.getFetchDirection();
+            saved |= FETCH_DIRECTION;
+        }
+        dirty |= FETCH_DIRECTION;
         ps.setFetchDirection(direction);
     }
 
@@ -663,7 +824,11 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setFetchSize(final int rows) throws SQLException {
-        changed = true;
+        if ((saved & FETCH_SIZE) == 0) {
+            initialFetchSize = ps.getFetchSize();
+            saved |= FETCH_SIZE;
+        }
+        dirty |= FETCH_SIZE;
         ps.setFetchSize(rows);
     }
 
@@ -672,7 +837,11 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setMaxFieldSize(final int max) throws SQLException {
-        changed = true;
+        if ((saved & MAX_FIELD_SIZE) == 0) {
+            initialMaxFieldSize = ps.getMaxFieldSize();
+            saved |= MAX_FIELD_SIZE;
+        }
+        dirty |= MAX_FIELD_SIZE;
         ps.setMaxFieldSize(max);
     }
 
@@ -681,7 +850,11 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setMaxRows(final int max) throws SQLException {
-        changed = true;
+        if ((saved & MAX_ROWS) == 0) {
+            initialMaxRows = ps.getMaxRows();
+            saved |= MAX_ROWS;
+        }
+        dirty |= MAX_ROWS;
         ps.setMaxRows(max);
     }
 
@@ -690,7 +863,11 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setQueryTimeout(final int seconds) throws SQLException {
-        changed = true;
+        if ((saved & QUERY_TIMEOUT) == 0) {
+            initialQueryTimeout = ps.getQueryTimeout();
+            saved |= QUERY_TIMEOUT;
+        }
+        dirty |= QUERY_TIMEOUT;
         ps.setQueryTimeout(seconds);
     }
 
@@ -707,6 +884,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setEscapeProcessing(final boolean enable) throws SQLException {
+        dirty |= ESCAPE_PROCESSING;
         ps.setEscapeProcessing(enable);
     }
 
@@ -715,7 +893,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int executeUpdate(final String sql) throws SQLException {
-        return ps.executeUpdate(sql);
+        dirty |= WARNINGS;
+        try {
+            return ps.executeUpdate(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -723,7 +907,7 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void addBatch(final String sql) throws SQLException {
-        changed = true;
+        dirty |= BATCH;
         ps.addBatch(sql);
     }
 
@@ -732,6 +916,8 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public void setCursorName(final String name) throws SQLException {
+        // No portable way to reset it
+        resettable = false;
         ps.setCursorName(name);
     }
 
@@ -740,8 +926,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean execute(final String sql) throws SQLException {
-        changed = true;
-        return ps.execute(sql);
+        dirty |= WARNINGS;
+        try {
+            return ps.execute(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -749,8 +940,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int executeUpdate(final String sql, final int autoGeneratedKeys) throws SQLException {
-        changed = true;
-        return ps.executeUpdate(sql, autoGeneratedKeys);
+        dirty |= WARNINGS;
+        try {
+            return ps.executeUpdate(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -758,8 +954,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean execute(final String sql, final int autoGeneratedKeys) throws SQLException {
-        changed = true;
-        return ps.execute(sql, autoGeneratedKeys);
+        dirty |= WARNINGS;
+        try {
+            return ps.execute(sql, autoGeneratedKeys);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -767,8 +968,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int executeUpdate(final String sql, final int[] columnIndexes) throws SQLException {
-        changed = true;
-        return ps.executeUpdate(sql, columnIndexes);
+        dirty |= WARNINGS;
+        try {
+            return ps.executeUpdate(sql, columnIndexes);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -776,8 +982,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean execute(final String sql, final int[] columnIndexes) throws SQLException {
-        changed = true;
-        return ps.execute(sql, columnIndexes);
+        dirty |= WARNINGS;
+        try {
+            return ps.execute(sql, columnIndexes);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -817,7 +1028,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public int executeUpdate(final String sql, final String[] columnNames) throws SQLException {
-        return ps.executeUpdate(sql, columnNames);
+        dirty |= WARNINGS;
+        try {
+            return ps.executeUpdate(sql, columnNames);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -825,7 +1042,13 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public boolean execute(final String sql, final String[] columnNames) throws SQLException {
-        return ps.execute(sql, columnNames);
+        dirty |= WARNINGS;
+        try {
+            return ps.execute(sql, columnNames);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     /**
@@ -833,11 +1056,18 @@ public class JStatement implements PreparedStatement {
      */
     @Override
     public ResultSet executeQuery(final String sql) throws SQLException {
-        return ps.executeQuery(sql);
+        dirty |= WARNINGS;
+        try {
+            return ps.executeQuery(sql);
+        } catch (SQLException e) {
+            mc.notifyStatementError(e);
+            throw e;
+        }
     }
 
     @Override
     public void setPoolable(boolean poolable) throws SQLException {
+        this.poolable = poolable;
         ps.setPoolable(poolable);
 
     }
@@ -849,6 +1079,8 @@ public class JStatement implements PreparedStatement {
 
     @Override
     public void closeOnCompletion() throws SQLException {
+        // The physical statement would be closed with its result sets
+        resettable = false;
         ps.closeOnCompletion();
 
     }
@@ -870,103 +1102,121 @@ public class JStatement implements PreparedStatement {
 
     @Override
     public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setRowId(parameterIndex, x);
     }
 
     @Override
     public void setNString(int parameterIndex, String value) throws SQLException {
+        dirty |= PARAMETERS;
        ps.setNString(parameterIndex, value);
 
     }
 
     @Override
     public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNCharacterStream(parameterIndex, value);
     }
 
     @Override
     public void setNClob(int parameterIndex, NClob value) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNClob(parameterIndex, value);
     }
 
     @Override
     public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setClob(parameterIndex, reader, length);
     }
 
     @Override
     public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBlob(parameterIndex, inputStream, length);
     }
 
     @Override
     public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNClob(parameterIndex, reader, length);
 
     }
 
     @Override
     public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setSQLXML(parameterIndex, xmlObject);
 
     }
 
     @Override
     public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setAsciiStream(parameterIndex, x, length);
 
     }
 
     @Override
     public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBinaryStream(parameterIndex, x, length);
 
     }
 
     @Override
     public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setCharacterStream(parameterIndex, reader, length);
 
     }
 
     @Override
     public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setAsciiStream(parameterIndex, x);
 
     }
 
     @Override
     public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBinaryStream(parameterIndex, x);
 
     }
 
     @Override
     public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setCharacterStream(parameterIndex, reader);
 
     }
 
     @Override
     public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNCharacterStream(parameterIndex, value);
 
     }
 
     @Override
     public void setClob(int parameterIndex, Reader reader) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setClob(parameterIndex, reader);
 
     }
 
     @Override
     public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setBlob(parameterIndex, inputStream);
 
     }
 
     @Override
     public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+        dirty |= PARAMETERS;
         ps.setNClob(parameterIndex, reader);
 
     }
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Literal SQL turned into a parameterized statement: the string and number
+ * literals are replaced by bind variables, so that the statements which only
+ * differ by their values share the same cached PreparedStatement.
+ * <p>
+ * The parser is conservative. Only SELECT, INSERT, UPDATE and DELETE are
+ * parameterized, and only the literals compared to a value (=, &lt;&gt;, &lt;,
+ * LIKE, ...) or listed in IN (...) and VALUES (...), where a bind variable has
+ * the same meaning. Other literals (ORDER BY 1, LIMIT 10, DATE '...', types,
+ * negative numbers) are kept in the SQL. Statements with comments, bind
+ * variables, JDBC escapes, several statements or backslashes in literals are
+ * not parameterized at all.
+ */
+public final class ParameterizedSql {
+
+    /**
+     * Statements which may be parameterized.
+     */
+    private static final Set<String> COMMANDS = new HashSet<String>(Arrays.asList("SELECT", "INSERT", "UPDATE",
+            "DELETE"));
+
+    /**
+     * Tokens after which a literal is a value.
+     */
+    private static final Set<String> COMPARISONS = new HashSet<String>(Arrays.asList("=", "<>", "!=", "<", ">",
+            "<=", ">=", "LIKE"));
+
+    /**
+     * Tokens opening a list of values.
+     */
+    private static final Set<String> LISTS = new HashSet<String>(Arrays.asList("IN", "VALUES"));
+
+    /**
+     * Max number of digits of an integer bound as a long.
+     */
+    private static final int LONG_DIGITS = 18;
+
+    /**
+     * SQL with bind variables.
+     */
+    private final String sql;
+
+    /**
+     * Values of the bind variables: String, Long or BigDecimal.
+     */
+    private final List<Object> values;
+
+    /**
+     * @param sql the SQL with bind variables
+     * @param values the values of the bind variables
+     */
+    private ParameterizedSql(final String sql, final List<Object> values) {
+        this.sql = sql;
+        this.values = Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @return the SQL with bind variables.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the values of the bind variables, in order.
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Sets the values of the bind variables on a statement prepared with
+     * getSql().
+     * @param ps the statement
+     * @throws SQLException if a value can't be set
+     */
+    public void bind(final PreparedStatement ps) throws SQLException {
+        int index = 1;
+        for (Object value : values) {
+            if (value instanceof String) {
+                ps.setString(index, (String) value);
+            } else if (value instanceof Long) {
+                ps.setLong(index, ((Long) value).longValue());
+            } else {
+                ps.setBigDecimal(index, (BigDecimal) value);
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Parameterizes a literal SQL statement.
+     * @param sql the SQL given to Statement.execute()
+     * @return the parameterized statement (possibly without bind variables),
+     *         null if the SQL can't be parameterized safely
+     */
+    public static ParameterizedSql parse(final String sql) {
+        int length = sql.length();
+        int i = 0;
+        while (i < length && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        int start = i;
+        while (i < length && isIdentifierPart(sql.charAt(i))) {
+            i++;
+        }
+        if (!COMMANDS.contains(sql.substring(start, i).toUpperCase(Locale.ENGLISH))) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(sql, 0, i);
+        List<Object> values = new ArrayList<Object>();
+        // true for each open parenthesis starting a list of values
+        LinkedList<Boolean> lists = new LinkedList<Boolean>();
+        String last = "";
+        // the last closed parenthesis was a list of values: (1, 2), (3, 4)
+        boolean closedList = false;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                sb.append(c);
+                i++;
+            } else if (c == '\'') {
+                int end = endOfString(sql, i);
+                if (end < 0) {
+                    return null;
+                }
+                if (isValue(last, lists) && !isIdentifierPart(sql.charAt(i - 1))) {
+                    values.add(sql.substring(i + 1, end - 1).replace("''", "'"));
+                    sb.append('?');
+                } else {
+                    sb.append(sql, i, end);
+                }
+                last = "'";
+                i = end;
+            } else if (c == '"' || c == '`' || c == '[') {
+                int end = sql.indexOf(c == '[' ? ']' : c, i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                sb.append(sql, i, end + 1);
+                last = "\"";
+                i = end + 1;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+                int end = endOfNumber(sql, i);
+                if (end < length && isIdentifierPart(sql.charAt(end))) {
+                    // not a number, but something like 1abc
+                    return null;
+                }
+                if (isValue(last, lists)) {
+                    values.add(toNumber(sql.substring(i, end)));
+                    sb.append('?');
+                } else {
+                    sb.append(sql, i, end);
+                }
+                last = "0";
+                i = end;
+            } else if (isIdentifierPart(c)) {
+                int end = i + 1;
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                last = sql.substring(i, end).toUpperCase(Locale.ENGLISH);
+                sb.append(sql, i, end);
+                i = end;
+            } else if (c == '<' || c == '>' || c == '=' || c == '!') {
+                int end = i + 1;
+                while (end < length && "<>=!".indexOf(sql.charAt(end)) >= 0) {
+                    end++;
+                }
+                last = sql.substring(i, end);
+                sb.append(last);
+                i = end;
+            } else if (c == '?' || c == '{' || c == ';' || (c == '-' || c == '/') && i + 1 < length
+                    && sql.charAt(i + 1) == (c == '-' ? '-' : '*')) {
+                // bind variables, escapes, several statements or comments
+                return null;
+            } else {
+                boolean closing = false;
+                if (c == '(') {
+                    boolean list = LISTS.contains(last) || ",".equals(last) && closedList
+                            || "(".equals(last) && !lists.isEmpty() && lists.peek().booleanValue();
+                    lists.push(Boolean.valueOf(list));
+                } else if (c == ')' && !lists.isEmpty()) {
+                    closing = lists.pop().booleanValue();
+                } else if (c == ',') {
+                    closing = closedList;
+                }
+                closedList = closing;
+                last = String.valueOf(c);
+                sb.append(c);
+                i++;
+            }
+        }
+        return new ParameterizedSql(sb.toString(), values);
+    }
+
+    /**
+     * @param last the previous token
+     * @param lists the open parentheses, innermost first
+     * @return true if a literal following this token is a value.
+     */
+    private static boolean isValue(final String last, final LinkedList<Boolean> lists) {
+        if (COMPARISONS.contains(last)) {
+            return true;
+        }
+        return ("(".equals(last) || ",".equals(last)) && !lists.isEmpty() && lists.peek().booleanValue();
+    }
+
+    /**
+     * @param sql the SQL
+     * @param start index of the opening quote
+     * @return the index after the closing quote, -1 if not closed or if the
+     *         string contains a backslash (escape in some databases)
+     */
+    private static int endOfString(final String sql, final int start) {
+        int i = start + 1;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                return -1;
+            }
+            if (c == '\'') {
+                if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @param sql the SQL
+     * @param start index of the first character of the number
+     * @return the index after the number: digits, decimals and exponent.
+     */
+    private static int endOfNumber(final String sql, final int start) {
+        int length = sql.length();
+        int i = start;
+        while (i < length && Character.isDigit(sql.charAt(i))) {
+            i++;
+        }
+        if (i < length && sql.charAt(i) == '.') {
+            i++;
+            while (i < length && Character.isDigit(sql.charAt(i))) {
+                i++;
+            }
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int exp = i + 1;
+            if (exp < length && (sql.charAt(exp) == '+' || sql.charAt(exp) == '-')) {
+                exp++;
+            }
+            if (exp < length && Character.isDigit(sql.charAt(exp))) {
+                i = exp;
+                while (i < length && Character.isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @param number a number literal
+     * @return a Long for the integers, a BigDecimal otherwise.
+     */
+    private static Object toNumber(final String number) {
+        boolean integer = true;
+        for (int i = 0; i < number.length(); i++) {
+            if (!Character.isDigit(number.charAt(i))) {
+                integer = false;
+                break;
+            }
+        }
+        if (integer && number.length() <= LONG_DIGITS) {
+            return Long.valueOf(number);
+        }
+        return new BigDecimal(number);
+    }
+
+    /**
+     * @param c a character
+     * @return true if the character may be part of an identifier or keyword.
+     */
+    private static boolean isIdentifierPart(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+    }
+}
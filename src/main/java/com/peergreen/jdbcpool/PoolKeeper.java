@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.ow2.util.log.Log;
+import org.ow2.util.log.LogFactory;
+
+/**
+ * Keeps a pool in good shape: every sampling period, it computes the pool
+ * statistics and adjusts the pool (aged connections, leaks, min size). It
+ * also checks the connections idle for too long (keepaliveTime), a few at a
+ * time. This runs in a dedicated daemon thread, never on the request path.
+ */
+public class PoolKeeper implements Runnable {
+
+    /**
+     * Logger.
+     */
+    private static Log logger = LogFactory.getLog(PoolKeeper.class);
+
+    /**
+     * Pool to keep.
+     */
+    private final ConnectionManager pool;
+
+    /**
+     * Scheduler, null if not started.
+     */
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Builds a keeper for the given pool.
+     * @param pool the connection manager
+     */
+    public PoolKeeper(final ConnectionManager pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Starts the keeper. The first run occurs after a sampling period.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new PoolThreadFactory(
+                "JDBC PoolKeeper " + pool.getDSName()));
+        // The runs scheduled when the keeper is stopped are dropped
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduler = executor;
+        schedule(scheduler);
+        scheduleIdleCheck(scheduler);
+        logger.debug("PoolKeeper started for {0}", pool.getDSName());
+    }
+
+    /**
+     * Stops the keeper. A run in progress is not interrupted, the next runs
+     * are cancelled.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler = null;
+        logger.debug("PoolKeeper stopped for {0}", pool.getDSName());
+    }
+
+    /**
+     * @return true if the keeper is started.
+     */
+    public synchronized boolean isStarted() {
+        return scheduler != null;
+    }
+
+    /**
+     * Runs the maintenance of the pool.
+     */
+    @Override
+    public void run() {
+        try {
+            pool.sampling();
+            pool.adjust();
+        } catch (RuntimeException e) {
+            logger.error("Error while adjusting the pool {0}", pool.getDSName(), e);
+        }
+    }
+
+    /**
+     * Checks the connections idle for too long.
+     */
+    private void checkIdleConnections() {
+        try {
+            pool.checkIdleConnections();
+        } catch (RuntimeException e) {
+            logger.error("Error while checking the idle connections of {0}", pool.getDSName(), e);
+        }
+    }
+
+    /**
+     * Schedules the next run, using the current sampling period of the pool.
+     * @param executor the scheduler to use
+     */
+    private void schedule(final ScheduledExecutorService executor) {
+        executor.schedule(new ScheduledRun(executor, false), pool.getSamplingPeriod(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Schedules the next check of the idle connections, using the current
+     * keepalive time of the pool.
+     * @param executor the scheduler to use
+     */
+    private void scheduleIdleCheck(final ScheduledExecutorService executor) {
+        executor.schedule(new ScheduledRun(executor, true), pool.getIdleCheckPeriod(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * A run scheduled on a scheduler, which schedules the next one on the
+     * same scheduler. It does nothing if the keeper has been stopped since,
+     * even if it has been started again: the new scheduler has its own runs.
+     */
+    private final class ScheduledRun implements Runnable {
+
+        /**
+         * Scheduler of this run.
+         */
+        private final ScheduledExecutorService executor;
+
+        /**
+         * Check of the idle connections, or maintenance of the pool.
+         */
+        private final boolean idleCheck;
+
+        /**
+         * @param executor the scheduler of this run
+         * @param idleCheck true for a check of the idle connections
+         */
+        private ScheduledRun(final ScheduledExecutorService executor, final boolean idleCheck) {
+            this.executor = executor;
+            this.idleCheck = idleCheck;
+        }
+
+        /**
+         * Runs, then schedules the next run if the scheduler is still the
+         * one of the keeper.
+         */
+        @Override
+        public void run() {
+            if (!isScheduler(executor)) {
+                return;
+            }
+            try {
+                if (idleCheck) {
+                    checkIdleConnections();
+                } else {
+                    PoolKeeper.this.run();
+                }
+            } finally {
+                synchronized (PoolKeeper.this) {
+                    if (scheduler == executor) {
+                        if (idleCheck) {
+                            scheduleIdleCheck(executor);
+                        } else {
+                            schedule(executor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param executor a scheduler
+     * @return true if it is the scheduler of the keeper, started and not
+     *         stopped since.
+     */
+    private synchronized boolean isScheduler(final ScheduledExecutorService executor) {
+        return scheduler == executor;
+    }
+}
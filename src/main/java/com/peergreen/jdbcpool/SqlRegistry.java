@@ -0,0 +1,223 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statements used on all the connections of a pool. For each statement key,
+ * it counts the uses and the physical prepares, and measures the prepare time.
+ * The pool uses it to decide which statements deserve a cache slot and which
+ * statements to prepare on new connections.
+ * <p>
+ * The registry is bounded: when it is full, new statements are not tracked
+ * until the next aging. Aging halves all the counts and forgets the statements
+ * which are no longer used, so that the registry follows the current load.
+ */
+public class SqlRegistry {
+
+    /**
+     * Default max number of tracked statements.
+     */
+    private static final int DEFAULT_MAX = 1000;
+
+    /**
+     * Statistics of a statement.
+     */
+    public static final class Entry {
+
+        /**
+         * Key of the statement.
+         */
+        private final StatementKey key;
+
+        /**
+         * Number of uses (aged). Incremented at each prepare on any
+         * connection: striped, so that the statements used the most are not
+         * a contended cache line.
+         */
+        private final StripedCounter uses = new StripedCounter();
+
+        /**
+         * Number of physical prepares.
+         */
+        private final AtomicLong prepares = new AtomicLong();
+
+        /**
+         * Total time of the physical prepares in ns.
+         */
+        private final AtomicLong prepareTime = new AtomicLong();
+
+        /**
+         * Builds the entry of a statement.
+         * @param key the key of the statement
+         */
+        private Entry(final StatementKey key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the key of the statement.
+         */
+        public StatementKey getKey() {
+            return key;
+        }
+
+        /**
+         * @return number of uses, halved at each aging.
+         */
+        public long getUses() {
+            return uses.get();
+        }
+
+        /**
+         * @return number of physical prepares.
+         */
+        public long getPrepares() {
+            return prepares.get();
+        }
+
+        /**
+         * @return average time of a physical prepare in ns.
+         */
+        public long getAveragePrepareTime() {
+            long n = prepares.get();
+            return n == 0 ? 0 : prepareTime.get() / n;
+        }
+    }
+
+    /**
+     * Orders the entries by decreasing uses.
+     */
+    private static final Comparator<Entry> MOST_USED_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            long u1 = e1.getUses();
+            long u2 = e2.getUses();
+            return u1 < u2 ? 1 : (u1 == u2 ? 0 : -1);
+        }
+    };
+
+    /**
+     * Tracked statements.
+     */
+    private final ConcurrentMap<StatementKey, Entry> entries = new ConcurrentHashMap<StatementKey, Entry>();
+
+    /**
+     * Max number of tracked statements.
+     */
+    private volatile int max = DEFAULT_MAX;
+
+    /**
+     * @return max number of tracked statements.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @param max max number of tracked statements
+     */
+    public void setMax(final int max) {
+        this.max = max;
+    }
+
+    /**
+     * A statement is used (prepared or taken from a cache).
+     * @param key the key of the statement
+     * @return the statistics of the statement, null if the registry is full
+     */
+    public Entry use(final StatementKey key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= max) {
+                return null;
+            }
+            Entry newEntry = new Entry(key);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        entry.uses.increment();
+        return entry;
+    }
+
+    /**
+     * A statement has been physically prepared.
+     * @param key the key of the statement
+     * @param time duration of the prepare in ns
+     */
+    public void prepared(final StatementKey key, final long time) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.prepares.incrementAndGet();
+            entry.prepareTime.addAndGet(time);
+        }
+    }
+
+    /**
+     * @param key the key of a statement
+     * @return the statistics of the statement, null if not tracked
+     */
+    public Entry get(final StatementKey key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @param n max number of statements
+     * @return the keys of the n most used statements, most used first.
+     */
+    public List<StatementKey> getTop(final int n) {
+        List<Entry> list = new ArrayList<Entry>(entries.values());
+        Collections.sort(list, MOST_USED_FIRST);
+        List<StatementKey> top = new ArrayList<StatementKey>(Math.min(n, list.size()));
+        for (Entry entry : list) {
+            if (top.size() >= n) {
+                break;
+            }
+            top.add(entry.getKey());
+        }
+        return top;
+    }
+
+    /**
+     * Halves the uses of all the statements, and forgets the unused ones.
+     */
+    public void age() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.uses.halve() == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of tracked statements.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Extension of the pool datasource, obtained with
+ * DataSource.unwrap(StatementAwareDataSource.class). The caller tells which
+ * statement it is about to run, and the pool gives preferably an idle
+ * connection which has this statement in its cache.
+ */
+public interface StatementAwareDataSource {
+
+    /**
+     * Gets a connection like DataSource.getConnection(), preferring an idle
+     * connection which has already prepared the statement.
+     * @param sql the SQL of the PreparedStatement the caller will run first
+     * @return a connection to the data source
+     * @throws SQLException if a database access error occurs
+     */
+    Connection getConnection(String sql) throws SQLException;
+
+    /**
+     * Gets a connection like DataSource.getConnection(), preferring an idle
+     * connection which has already prepared the statement.
+     * @param key the SQL and options of the statement the caller will run
+     *        first
+     * @return a connection to the data source
+     * @throws SQLException if a database access error occurs
+     */
+    Connection getConnection(StatementKey key) throws SQLException;
+}
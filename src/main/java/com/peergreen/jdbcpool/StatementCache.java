@@ -0,0 +1,227 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prepared statement cache of a managed connection, bounded by pstmtMax.
+ * Only the statements logically closed may be evicted: they are kept in a
+ * separate list, least recently closed first, so that a lookup, an insertion
+ * and an eviction are all O(1). When the cache is full of open statements, a
+ * new statement is not cached and is physically closed when the caller closes
+ * it.
+ * <p>
+ * This class is not locked: only the owner of the managed connection changes
+ * it. The statements are indexed by a concurrent map, so that other threads
+ * may look up a statement (contains) and read the size and the statistics,
+ * which may be late.
+ */
+public class StatementCache {
+
+    /**
+     * All the cached statements, by key.
+     */
+    private final Map<StatementKey, JStatement> statements = new ConcurrentHashMap<StatementKey, JStatement>();
+
+    /**
+     * Cached statements which are closed, least recently used first.
+     */
+    private final LinkedHashMap<StatementKey, JStatement> evictables = new LinkedHashMap<StatementKey, JStatement>();
+
+    /**
+     * Max number of cached statements.
+     */
+    private int max;
+
+    /**
+     * Number of statements found in the cache.
+     */
+    private long hits = 0;
+
+    /**
+     * Number of statements not found in the cache.
+     */
+    private long misses = 0;
+
+    /**
+     * Number of statements removed from the cache to make room.
+     */
+    private long evictions = 0;
+
+    /**
+     * Builds an empty cache.
+     * @param max max number of cached statements
+     */
+    public StatementCache(final int max) {
+        this.max = max;
+    }
+
+    /**
+     * Changes the max number of cached statements, evicting closed statements
+     * if needed.
+     * @param max max number of cached statements
+     */
+    public void setMax(final int max) {
+        this.max = max;
+        boolean evicted = true;
+        while (evicted && statements.size() > max) {
+            evicted = evictEldest();
+        }
+    }
+
+    /**
+     * @return max number of cached statements.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Takes a cached statement. The statement is no longer evictable until
+     * it is released. A statement still open is not shared: its result sets
+     * would be closed by the new user.
+     * @param key the SQL and options of the statement
+     * @return the statement, null if not cached or in use
+     */
+    public JStatement take(final StatementKey key) {
+        JStatement ps = statements.get(key);
+        if (ps == null || !ps.isClosed()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        evictables.remove(key);
+        return ps;
+    }
+
+    /**
+     * Adds a statement just prepared, and in use. The eldest closed statement
+     * is evicted if the cache is full.
+     * @param ps the statement
+     * @return false if the cache is full of open statements or already holds
+     *         a statement with this key (in use): the statement is not
+     *         cached.
+     */
+    public boolean put(final JStatement ps) {
+        if (statements.containsKey(ps.getKey())) {
+            return false;
+        }
+        if (statements.size() >= max && !evictEldest()) {
+            return false;
+        }
+        statements.put(ps.getKey(), ps);
+        return true;
+    }
+
+    /**
+     * @param key the SQL and options of a statement
+     * @return true if the statement is cached.
+     */
+    public boolean contains(final StatementKey key) {
+        return statements.containsKey(key);
+    }
+
+    /**
+     * A statement has been closed by the caller: it becomes the most recently
+     * used evictable statement.
+     * @param ps the statement
+     * @return false if the statement is not in the cache
+     */
+    public boolean release(final JStatement ps) {
+        if (statements.get(ps.getKey()) != ps) {
+            return false;
+        }
+        evictables.put(ps.getKey(), ps);
+        if (statements.size() > max) {
+            // max has been lowered while the statement was open
+            evictEldest();
+        }
+        return true;
+    }
+
+    /**
+     * Removes a statement from the cache, without closing it.
+     * @param ps the statement
+     * @return false if the statement is not in the cache
+     */
+    public boolean remove(final JStatement ps) {
+        if (statements.get(ps.getKey()) != ps) {
+            return false;
+        }
+        statements.remove(ps.getKey());
+        evictables.remove(ps.getKey());
+        return true;
+    }
+
+    /**
+     * @return a snapshot of the cached statements.
+     */
+    public List<JStatement> values() {
+        return new ArrayList<JStatement>(statements.values());
+    }
+
+    /**
+     * @return number of cached statements.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return number of statements found in the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of statements not found in the cache.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of statements removed from the cache to make room.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Removes the least recently used closed statement and closes it
+     * physically.
+     * @return false if no statement can be evicted
+     */
+    private boolean evictEldest() {
+        Iterator<JStatement> it = evictables.values().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        JStatement lru = it.next();
+        it.remove();
+        statements.remove(lru.getKey());
+        evictions++;
+        lru.forget();
+        return true;
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Key of a cached statement: the SQL and all the options given to
+ * Connection.prepareStatement() or Connection.prepareCall(). Two statements
+ * prepared with the same key are interchangeable. The key knows how to
+ * prepare its statement.
+ */
+public final class StatementKey {
+
+    /**
+     * Value of the options which are not given.
+     */
+    public static final int UNSET = -1;
+
+    /**
+     * SQL of the statement.
+     */
+    private final String sql;
+
+    /**
+     * CallableStatement (prepareCall) or PreparedStatement.
+     */
+    private final boolean callable;
+
+    /**
+     * Type of the result sets.
+     */
+    private final int resultSetType;
+
+    /**
+     * Concurrency of the result sets.
+     */
+    private final int resultSetConcurrency;
+
+    /**
+     * Holdability of the result sets, UNSET for the connection default.
+     */
+    private final int resultSetHoldability;
+
+    /**
+     * Statement.RETURN_GENERATED_KEYS or NO_GENERATED_KEYS, UNSET if not given.
+     */
+    private final int autoGeneratedKeys;
+
+    /**
+     * Indexes of the generated columns to return, null if not given.
+     */
+    private final int[] columnIndexes;
+
+    /**
+     * Names of the generated columns to return, null if not given.
+     */
+    private final String[] columnNames;
+
+    /**
+     * Hashcode computed in constructor.
+     */
+    private final int hashCode;
+
+    /**
+     * Key of Connection.prepareStatement(sql).
+     * @param sql the SQL
+     */
+    public StatementKey(final String sql) {
+        this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * Key of Connection.prepareStatement(sql, resultSetType,
+     * resultSetConcurrency).
+     * @param sql the SQL
+     * @param resultSetType the type of the result sets
+     * @param resultSetConcurrency the concurrency of the result sets
+     */
+    public StatementKey(final String sql, final int resultSetType, final int resultSetConcurrency) {
+        this(sql, resultSetType, resultSetConcurrency, UNSET);
+    }
+
+    /**
+     * Key of Connection.prepareStatement(sql, resultSetType,
+     * resultSetConcurrency, resultSetHoldability).
+     * @param sql the SQL
+     * @param resultSetType the type of the result sets
+     * @param resultSetConcurrency the concurrency of the result sets
+     * @param resultSetHoldability the holdability of the result sets
+     */
+    public StatementKey(final String sql, final int resultSetType, final int resultSetConcurrency,
+            final int resultSetHoldability) {
+        this(false, sql, resultSetType, resultSetConcurrency, resultSetHoldability, UNSET, null, null);
+    }
+
+    /**
+     * Key of Connection.prepareCall(sql, resultSetType, resultSetConcurrency,
+     * resultSetHoldability).
+     * @param callable true: the key of a CallableStatement
+     * @param sql the SQL
+     * @param resultSetType the type of the result sets
+     * @param resultSetConcurrency the concurrency of the result sets
+     * @param resultSetHoldability the holdability of the result sets or UNSET
+     */
+    public StatementKey(final boolean callable, final String sql, final int resultSetType,
+            final int resultSetConcurrency, final int resultSetHoldability) {
+        this(callable, sql, resultSetType, resultSetConcurrency, resultSetHoldability, UNSET, null, null);
+    }
+
+    /**
+     * Key of Connection.prepareStatement(sql, autoGeneratedKeys).
+     * @param sql the SQL
+     * @param autoGeneratedKeys whether generated keys are returned
+     */
+    public StatementKey(final String sql, final int autoGeneratedKeys) {
+        this(false, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, UNSET, autoGeneratedKeys, null, null);
+    }
+
+    /**
+     * Key of Connection.prepareStatement(sql, columnIndexes).
+     * @param sql the SQL
+     * @param columnIndexes indexes of the generated columns to return
+     */
+    public StatementKey(final String sql, final int[] columnIndexes) {
+        this(false, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, UNSET, UNSET, columnIndexes.clone(),
+                null);
+    }
+
+    /**
+     * Key of Connection.prepareStatement(sql, columnNames).
+     * @param sql the SQL
+     * @param columnNames names of the generated columns to return
+     */
+    public StatementKey(final String sql, final String[] columnNames) {
+        this(false, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, UNSET, UNSET, null,
+                columnNames.clone());
+    }
+
+    /**
+     * Builds a key from all its values.
+     * @param callable true: the key of a CallableStatement
+     * @param sql the SQL
+     * @param resultSetType the type of the result sets
+     * @param resultSetConcurrency the concurrency of the result sets
+     * @param resultSetHoldability the holdability of the result sets or UNSET
+     * @param autoGeneratedKeys whether generated keys are returned, or UNSET
+     * @param columnIndexes indexes of the generated columns to return, or null
+     * @param columnNames names of the generated columns to return, or null
+     */
+    private StatementKey(final boolean callable, final String sql, final int resultSetType,
+            final int resultSetConcurrency, final int resultSetHoldability, final int autoGeneratedKeys,
+            final int[] columnIndexes, final String[] columnNames) {
+        this.callable = callable;
+        this.sql = sql;
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.resultSetHoldability = resultSetHoldability;
+        this.autoGeneratedKeys = autoGeneratedKeys;
+        this.columnIndexes = columnIndexes;
+        this.columnNames = columnNames;
+        int h = sql.hashCode();
+        h = 31 * h + (callable ? 1 : 0);
+        h = 31 * h + resultSetType;
+        h = 31 * h + resultSetConcurrency;
+        h = 31 * h + resultSetHoldability;
+        h = 31 * h + autoGeneratedKeys;
+        h = 31 * h + Arrays.hashCode(columnIndexes);
+        h = 31 * h + Arrays.hashCode(columnNames);
+        hashCode = h;
+    }
+
+    /**
+     * @return the SQL of the statement.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return true if this is the key of a CallableStatement.
+     */
+    public boolean isCallable() {
+        return callable;
+    }
+
+    /**
+     * @return the type of the result sets.
+     */
+    public int getResultSetType() {
+        return resultSetType;
+    }
+
+    /**
+     * @return the concurrency of the result sets.
+     */
+    public int getResultSetConcurrency() {
+        return resultSetConcurrency;
+    }
+
+    /**
+     * Prepares a new statement for this key.
+     * @param connection the physical connection
+     * @return the physical statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    public PreparedStatement prepare(final Connection connection) throws SQLException {
+        if (callable) {
+            if (resultSetHoldability != UNSET) {
+                return connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            }
+            return connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+        }
+        if (columnIndexes != null) {
+            return connection.prepareStatement(sql, columnIndexes);
+        }
+        if (columnNames != null) {
+            return connection.prepareStatement(sql, columnNames);
+        }
+        if (autoGeneratedKeys != UNSET) {
+            return connection.prepareStatement(sql, autoGeneratedKeys);
+        }
+        if (resultSetHoldability != UNSET) {
+            return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+        return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
+    /**
+     * @return hashcode of the object
+     */
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * @param obj given key for comparing it
+     * @return true if given object is equals to this current object
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof StatementKey)) {
+            return false;
+        }
+        StatementKey other = (StatementKey) obj;
+        return hashCode == other.hashCode
+                && callable == other.callable
+                && resultSetType == other.resultSetType
+                && resultSetConcurrency == other.resultSetConcurrency
+                && resultSetHoldability == other.resultSetHoldability
+                && autoGeneratedKeys == other.autoGeneratedKeys
+                && sql.equals(other.sql)
+                && Arrays.equals(columnIndexes, other.columnIndexes)
+                && Arrays.equals(columnNames, other.columnNames);
+    }
+
+    /**
+     * @return the SQL and the options of the statement.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(sql);
+        sb.append(callable ? " [call, type=" : " [type=").append(resultSetType);
+        sb.append(", concurrency=").append(resultSetConcurrency);
+        if (resultSetHoldability != UNSET) {
+            sb.append(", holdability=").append(resultSetHoldability);
+        }
+        if (autoGeneratedKeys != UNSET) {
+            sb.append(", autoGeneratedKeys=").append(autoGeneratedKeys);
+        }
+        if (columnIndexes != null) {
+            sb.append(", columnIndexes=").append(Arrays.toString(columnIndexes));
+        }
+        if (columnNames != null) {
+            sb.append(", columnNames=").append(Arrays.toString(columnNames));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counter incremented by many threads at once, like the LongAdder of Java 8.
+ * It is a single AtomicLong until two threads increment it at the same time;
+ * it then spreads the increments of the threads over cells, each in its own
+ * cache line. Reading the count sums the cells: it is meant for counters
+ * incremented much more often than read.
+ */
+class StripedCounter {
+
+    /**
+     * Longs between two cells: 64 bytes, a cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * Number of cells: a power of two, at least the number of processors.
+     */
+    private static final int CELLS;
+
+    static {
+        int n = 1;
+        int max = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        while (n < max) {
+            n <<= 1;
+        }
+        CELLS = n;
+    }
+
+    /**
+     * Count while the counter is not contended.
+     */
+    private final AtomicLong base = new AtomicLong();
+
+    /**
+     * Cells, created on the first contention.
+     */
+    private final AtomicReference<AtomicLongArray> cells = new AtomicReference<AtomicLongArray>();
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        AtomicLongArray c = cells.get();
+        if (c == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + 1)) {
+                return;
+            }
+            // Contended
+            cells.compareAndSet(null, new AtomicLongArray(CELLS * PADDING));
+            c = cells.get();
+        }
+        c.getAndIncrement(index() * PADDING);
+    }
+
+    /**
+     * @return the count, not a snapshot if the counter is being incremented.
+     */
+    public long get() {
+        long sum = base.get();
+        AtomicLongArray c = cells.get();
+        if (c != null) {
+            for (int i = 0; i < CELLS; i++) {
+                sum += c.get(i * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Halves the count. The increments made meanwhile are kept.
+     * @return the count once halved
+     */
+    public long halve() {
+        long sum = halve(base);
+        AtomicLongArray c = cells.get();
+        if (c != null) {
+            for (int i = 0; i < CELLS; i++) {
+                long value;
+                do {
+                    value = c.get(i * PADDING);
+                } while (!c.compareAndSet(i * PADDING, value, value / 2));
+                sum += value / 2;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param value a part of the count
+     * @return the part once halved
+     */
+    private static long halve(final AtomicLong value) {
+        long v;
+        do {
+            v = value.get();
+        } while (!value.compareAndSet(v, v / 2));
+        return v / 2;
+    }
+
+    /**
+     * @return the cell of the current thread.
+     */
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        // Spread the consecutive identifiers
+        h *= 0x9E3779B9;
+        return (h >>> 16) & (CELLS - 1);
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Concurrency tests of the bag of connections: no connection is lost or
+ * given to two threads at once, and the waiters are served in FIFO order.
+ */
+public class ConnectionBagTest {
+
+    /**
+     * Number of connections of the concurrent tests.
+     */
+    private static final int CONNECTIONS = 4;
+
+    /**
+     * Number of threads of the concurrent tests.
+     */
+    private static final int THREADS = 32;
+
+    /**
+     * Number of borrows of each thread.
+     */
+    private static final int BORROWS = 2000;
+
+    /**
+     * Max time to wait for a connection, in seconds.
+     */
+    private static final long TIMEOUT = 10;
+
+    /**
+     * The pool may never create a connection.
+     */
+    private static final ConnectionBag.Capacity FULL = new ConnectionBag.Capacity() {
+        @Override
+        public boolean isAvailable() {
+            return false;
+        }
+    };
+
+    /**
+     * The pool may create a connection.
+     */
+    private static final ConnectionBag.Capacity AVAILABLE = new ConnectionBag.Capacity() {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    };
+
+    @DataProvider(name = "policies")
+    public Object[][] policies() {
+        return new Object[][] {{true, false, 1}, {false, false, 1}, {true, true, 1}, {false, true, 4}};
+    }
+
+    @Test(dataProvider = "policies")
+    public void testNoConnectionLostOrShared(final boolean fair, final boolean threadAffinity, final int stripes)
+            throws Exception {
+        final ConnectionBag bag = new ConnectionBag();
+        bag.setFair(fair);
+        bag.setThreadAffinity(threadAffinity);
+        bag.setStripes(stripes);
+        List<JManagedConnection> connections = new ArrayList<JManagedConnection>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            JManagedConnection mc = newConnection();
+            connections.add(mc);
+            bag.add(mc);
+        }
+
+        final ConcurrentMap<JManagedConnection, Thread> owners = new ConcurrentHashMap<JManagedConnection, Thread>();
+        final AtomicInteger shared = new AtomicInteger();
+        final AtomicInteger timeouts = new AtomicInteger();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < BORROWS; i++) {
+                            JManagedConnection mc = borrow(bag);
+                            if (mc == null) {
+                                timeouts.incrementAndGet();
+                                continue;
+                            }
+                            if (owners.putIfAbsent(mc, Thread.currentThread()) != null) {
+                                shared.incrementAndGet();
+                            }
+                            Thread.yield();
+                            owners.remove(mc, Thread.currentThread());
+                            bag.requite(mc);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertEquals(shared.get(), 0, "connections given to two threads at once");
+        assertEquals(timeouts.get(), 0, "borrowers not served");
+        assertEquals(bag.size(), CONNECTIONS);
+        assertEquals(bag.getWaitingThreadCount(), 0);
+        assertEquals(bag.getIdleCount(), CONNECTIONS);
+        for (JManagedConnection mc : connections) {
+            assertEquals(mc.getState(), JManagedConnection.STATE_NOT_IN_USE);
+        }
+        // All idle connections can still be borrowed
+        for (int i = 0; i < CONNECTIONS; i++) {
+            assertNotNull(bag.borrow());
+        }
+        assertNull(bag.borrow());
+    }
+
+    @Test
+    public void testWaitersServedInFifoOrder() throws Exception {
+        final ConnectionBag bag = new ConnectionBag();
+        bag.setFair(true);
+        bag.add(newConnection());
+        JManagedConnection held = bag.borrow();
+        assertNotNull(held);
+
+        final List<Integer> served = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> waiters = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int rank = i;
+            Thread waiter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        JManagedConnection mc = borrow(bag);
+                        if (mc != null) {
+                            served.add(Integer.valueOf(rank));
+                            bag.requite(mc);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            waiter.start();
+            awaitParked(waiter);
+            waiters.add(waiter);
+        }
+
+        bag.requite(held);
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 8; i++) {
+            expected.add(Integer.valueOf(i));
+        }
+        assertEquals(served, expected);
+    }
+
+    @Test
+    public void testConnectionNotGivenToWaiterWhichHasLeft() throws Exception {
+        ConnectionBag bag = new ConnectionBag();
+        bag.setFair(true);
+        JManagedConnection mc = newConnection();
+        bag.add(mc);
+        assertSame(bag.borrow(), mc);
+
+        // This waiter leaves, and stays in the queue
+        assertTrue(bag.addWaiter(Integer.MAX_VALUE));
+        try {
+            assertNull(bag.poll(1, TimeUnit.MILLISECONDS, FULL));
+        } finally {
+            bag.removeWaiter();
+        }
+
+        bag.requite(mc);
+        assertEquals(mc.getState(), JManagedConnection.STATE_NOT_IN_USE);
+        assertSame(bag.borrow(), mc);
+    }
+
+    @Test
+    public void testWaiterDoesNotWaitForAvailableCapacity() throws Exception {
+        ConnectionBag bag = new ConnectionBag();
+        // A connection has been destroyed before the waiter was queued
+        bag.signalCapacity();
+        assertTrue(bag.addWaiter(Integer.MAX_VALUE));
+        long start = System.nanoTime();
+        try {
+            assertNull(bag.poll(TIMEOUT, TimeUnit.SECONDS, AVAILABLE));
+        } finally {
+            bag.removeWaiter();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testWaiterWokenUpWhenCapacityFreed() throws Exception {
+        final ConnectionBag bag = new ConnectionBag();
+        final long[] waited = new long[1];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    bag.addWaiter(Integer.MAX_VALUE);
+                    try {
+                        bag.poll(TIMEOUT, TimeUnit.SECONDS, FULL);
+                    } finally {
+                        bag.removeWaiter();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                waited[0] = System.nanoTime() - start;
+            }
+        });
+        waiter.start();
+        awaitParked(waiter);
+        bag.signalCapacity();
+        waiter.join();
+        assertTrue(waited[0] < TimeUnit.SECONDS.toNanos(TIMEOUT));
+    }
+
+    /**
+     * Borrows a connection, waiting if none is idle.
+     * @param bag the bag
+     * @return the connection, null if the timeout has expired
+     * @throws InterruptedException if interrupted
+     */
+    private static JManagedConnection borrow(final ConnectionBag bag) throws InterruptedException {
+        JManagedConnection mc = bag.borrow();
+        if (mc != null) {
+            return mc;
+        }
+        bag.addWaiter(Integer.MAX_VALUE);
+        try {
+            return bag.poll(TIMEOUT, TimeUnit.SECONDS, FULL);
+        } finally {
+            bag.removeWaiter();
+        }
+    }
+
+    /**
+     * Waits until a thread is parked, waiting for a connection.
+     * @param thread the thread
+     * @throws InterruptedException if interrupted
+     */
+    private static void awaitParked(final Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * @return a new idle connection, on a mocked physical connection.
+     */
+    private static JManagedConnection newConnection() {
+        JManagedConnection mc = new JManagedConnection(mock(Connection.class), mock(ConnectionManager.class));
+        mc.setState(JManagedConnection.STATE_NOT_IN_USE);
+        return mc;
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.XAConnection;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the pool on mocked XAConnections: the slots reserved by the
+ * threads opening connections never exceed the max size of the pool, a
+ * database slow to connect or validate doesn't block the other threads, and
+ * the errors of an enlisted connection fail its transaction.
+ */
+public class ConnectionManagerTest {
+
+    /**
+     * Max size of the pool.
+     */
+    private static final int POOL_MAX = 4;
+
+    /**
+     * Number of threads.
+     */
+    private static final int THREADS = 32;
+
+    /**
+     * Number of connections got by each thread.
+     */
+    private static final int LOOPS = 500;
+
+    /**
+     * Max time to wait for a connection, in seconds.
+     */
+    private static final int TIMEOUT = 10;
+
+    @Test
+    public void testPoolMaxNeverExceeded() throws Exception {
+        TestConnectionManager pool = newPool(0);
+        List<Throwable> errors = run(pool);
+
+        assertTrue(errors.isEmpty(), errors.toString());
+        assertTrue(pool.created.get() <= POOL_MAX, "connections created: " + pool.created.get());
+        assertEquals(pool.getCurrentOpened(), pool.created.get());
+        assertEquals(pool.getCurrentBusy(), 0);
+        assertEquals(pool.getCurrentWaiters(), 0);
+        assertEquals(pool.getRejectedTimeout(), 0);
+    }
+
+    @Test
+    public void testSlotReleasedWhenConnectFails() throws Exception {
+        TestConnectionManager pool = newPool(POOL_MAX * 2);
+        List<Throwable> errors = run(pool);
+
+        // The failed connects are reported to their caller only
+        for (Throwable e : errors) {
+            assertTrue(e instanceof SQLException, e.toString());
+        }
+        assertEquals(errors.size(), POOL_MAX * 2);
+        // Their slots have been given back: the pool still reaches its max
+        // size, and no waiter is left without a connection.
+        assertEquals(pool.created.get(), POOL_MAX);
+        assertEquals(pool.getCurrentOpened(), POOL_MAX);
+        assertEquals(pool.getCurrentBusy(), 0);
+        assertEquals(pool.getRejectedTimeout(), 0);
+    }
+
+    @Test
+    public void testEnlistedConnectionDelistedOnError() throws Exception {
+        TestConnectionManager pool = newPool(0);
+        Transaction tx = inTransaction(pool);
+
+        Connection connection = pool.getConnection();
+        pool.last.notifyError(new SQLException("Cannot commit", "40001"));
+        pool.last.notifyError(new SQLException("Cannot commit", "40001"));
+        connection.close();
+
+        // Delisted once, not again when closed
+        verify(tx, times(1)).delistResource(any(XAResource.class), anyInt());
+        verify(tx).delistResource(pool.last.getXAResource(), XAResource.TMFAIL);
+    }
+
+    @Test
+    public void testStatementErrorNotReportedUnlessFatal() throws Exception {
+        TestConnectionManager pool = newPool(0);
+        Transaction tx = inTransaction(pool);
+
+        Connection connection = pool.getConnection();
+        // Duplicate key: the caller may go on in the transaction
+        pool.last.notifyStatementError(new SQLException("Duplicate key", "23505"));
+        verify(tx, never()).delistResource(any(XAResource.class), anyInt());
+        assertEquals(pool.getFatalErrors(), 0);
+
+        pool.last.notifyStatementError(new SQLException("Connection reset", "08006"));
+        verify(tx).delistResource(pool.last.getXAResource(), XAResource.TMFAIL);
+        assertEquals(pool.getFatalErrors(), 1);
+        connection.close();
+    }
+
+    @Test(timeOut = 60000)
+    public void testSlowConnectDoesNotBlockOtherThreads() throws Exception {
+        final TestConnectionManager pool = newPool(0);
+        pool.setPoolMax(3);
+        fill(pool, 2);
+
+        // The database doesn't answer when adjust() opens a third connection
+        pool.resume = new CountDownLatch(1);
+        Thread filler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pool.setPoolMin(3);
+            }
+        });
+        filler.start();
+        assertTrue(pool.connectWaiting.await(TIMEOUT, TimeUnit.SECONDS));
+
+        // The configuration changes and the borrows of idle connections go on
+        pool.setPoolMax(2);
+        pool.setPoolMin(2);
+        pool.sampling();
+        pool.adjust();
+        List<Throwable> errors = run(pool);
+        assertTrue(errors.isEmpty(), errors.toString());
+
+        // The pool is adjusted to the new bounds once the database answers
+        pool.resume.countDown();
+        filler.join();
+        assertEquals(pool.getCurrentOpened(), 2);
+    }
+
+    @Test(timeOut = 60000)
+    public void testSlowValidationDoesNotBlockOtherThreads() throws Exception {
+        final TestConnectionManager pool = newPool(0);
+        pool.setPoolMax(3);
+        pool.setCheckLevel(2);
+        pool.setValidationInterval(0);
+        fill(pool, 3);
+
+        // The database doesn't answer the validation of a connection
+        final CountDownLatch validating = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        when(pool.lastPhysical.isValid(anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws InterruptedException {
+                validating.countDown();
+                resume.await();
+                return Boolean.TRUE;
+            }
+        });
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (validating.getCount() > 0) {
+                        pool.getConnection().close();
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        blocked.start();
+        assertTrue(validating.await(TIMEOUT, TimeUnit.SECONDS));
+
+        // The other connections are still borrowed and validated
+        List<Throwable> errors = run(pool);
+        assertTrue(errors.isEmpty(), errors.toString());
+
+        resume.countDown();
+        blocked.join();
+        assertEquals(pool.getCurrentBusy(), 0);
+    }
+
+    /**
+     * Opens idle connections in a pool.
+     * @param pool the pool
+     * @param nb number of connections
+     * @throws SQLException if a connection can't be opened
+     */
+    private static void fill(final ConnectionManager pool, final int nb) throws SQLException {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < nb; i++) {
+            connections.add(pool.getConnection());
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Makes the connections of a pool be got in a transaction.
+     * @param pool the pool
+     * @return the transaction
+     * @throws Exception never
+     */
+    private static Transaction inTransaction(final ConnectionManager pool) throws Exception {
+        Transaction tx = mock(Transaction.class);
+        TransactionManager tm = mock(TransactionManager.class);
+        when(tm.getTransaction()).thenReturn(tx);
+        pool.setTm(tm);
+        return tx;
+    }
+
+    /**
+     * Gets and closes connections from many threads.
+     * @param pool the pool
+     * @return the errors of the threads
+     * @throws InterruptedException if interrupted
+     */
+    private static List<Throwable> run(final ConnectionManager pool) throws InterruptedException {
+        final ConcurrentMap<Connection, Thread> owners = new ConcurrentHashMap<Connection, Thread>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int i = 0; i < LOOPS; i++) {
+                        try {
+                            Connection connection = pool.getConnection();
+                            Connection physical = ((JConnection) connection).getConnection();
+                            if (owners.putIfAbsent(physical, Thread.currentThread()) != null) {
+                                errors.add(new IllegalStateException("connection given to two threads at once"));
+                            }
+                            Thread.yield();
+                            owners.remove(physical, Thread.currentThread());
+                            connection.close();
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return errors;
+    }
+
+    /**
+     * @param failures number of connects which fail
+     * @return a new pool on mocked connections.
+     */
+    private static TestConnectionManager newPool(final int failures) {
+        TestConnectionManager pool = new TestConnectionManager(failures);
+        pool.setDSName("test" + System.nanoTime());
+        pool.setDatasourceName("test");
+        pool.setTm(mock(TransactionManager.class));
+        pool.setPoolMin(0);
+        pool.setPoolMax(POOL_MAX);
+        pool.setMaxWaitTime(TIMEOUT);
+        return pool;
+    }
+
+    /**
+     * Pool opening mocked connections, slowly so that the threads race for
+     * the slots.
+     */
+    private static class TestConnectionManager extends ConnectionManager {
+
+        /**
+         * Number of connections created.
+         */
+        private final AtomicInteger created = new AtomicInteger();
+
+        /**
+         * Number of connects which still have to fail.
+         */
+        private final AtomicInteger failures;
+
+        /**
+         * Last connection created.
+         */
+        private volatile JManagedConnection last = null;
+
+        /**
+         * Physical connection of the last connection created.
+         */
+        private volatile Connection lastPhysical = null;
+
+        /**
+         * Released when the connects may go on, null if they don't wait.
+         */
+        private volatile CountDownLatch resume = null;
+
+        /**
+         * Counted down when a connect waits.
+         */
+        private final CountDownLatch connectWaiting = new CountDownLatch(1);
+
+        /**
+         * @param failures number of connects which fail
+         */
+        TestConnectionManager(final int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public XAConnection getXAConnection() throws SQLException {
+            try {
+                Thread.sleep(5);
+                CountDownLatch latch = resume;
+                if (latch != null) {
+                    connectWaiting.countDown();
+                    latch.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new SQLException("Could not get Connection");
+            }
+            created.incrementAndGet();
+            Connection physical = mock(Connection.class);
+            when(physical.isValid(anyInt())).thenReturn(true);
+            lastPhysical = physical;
+            last = new JManagedConnection(physical, this);
+            return last;
+        }
+    }
+}
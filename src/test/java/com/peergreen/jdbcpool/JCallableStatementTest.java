@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.CallableStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that a cached CallableStatement is only given again to users
+ * registering the same out parameters: some drivers keep the registrations
+ * after clearParameters().
+ */
+public class JCallableStatementTest {
+
+    /**
+     * Statement given to the users.
+     */
+    private JCallableStatement statement;
+
+    @BeforeMethod
+    public void setUp() {
+        statement = new JCallableStatement(mock(CallableStatement.class), mock(JManagedConnection.class),
+                new StatementKey("{call p(?, ?)}"));
+    }
+
+    @Test
+    public void testFirstUseIsReusable() throws SQLException {
+        statement.registerOutParameter(2, Types.INTEGER);
+        assertTrue(statement.isReusable());
+    }
+
+    @Test
+    public void testSameRegistrationsAreReusable() throws SQLException {
+        statement.registerOutParameter(2, Types.DECIMAL, 2);
+        statement.reuse();
+        statement.registerOutParameter(2, Types.DECIMAL, 2);
+        assertTrue(statement.isReusable());
+    }
+
+    @Test
+    public void testOtherTypeIsNotReusable() throws SQLException {
+        statement.registerOutParameter(2, Types.INTEGER);
+        statement.reuse();
+        statement.registerOutParameter(2, Types.VARCHAR);
+        assertFalse(statement.isReusable());
+    }
+
+    @Test
+    public void testRegistrationsNotMadeAgainAreNotReusable() throws SQLException {
+        statement.registerOutParameter("result", Types.INTEGER);
+        statement.reuse();
+        statement.setInt(1, 1);
+        assertFalse(statement.isReusable());
+    }
+
+    @Test
+    public void testStatementWithoutOutParametersIsReusable() throws SQLException {
+        statement.setInt(1, 1);
+        statement.reuse();
+        statement.setInt(1, 2);
+        assertTrue(statement.isReusable());
+    }
+}
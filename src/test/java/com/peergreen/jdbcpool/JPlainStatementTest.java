@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the executions of the literal SQL: parameterized when the pool is
+ * configured so, executed as is when the database refuses the bind variables.
+ */
+public class JPlainStatementTest {
+
+    /**
+     * Literal SQL given by the user.
+     */
+    private static final String SQL = "select * from t where id = 42";
+
+    /**
+     * Parameterized SQL.
+     */
+    private static final String PARAMETERIZED_SQL = "select * from t where id = ?";
+
+    /**
+     * Physical PreparedStatement of the parameterized SQL.
+     */
+    private PreparedStatement ps;
+
+    /**
+     * Physical Statement executing the literal SQL.
+     */
+    private Statement st;
+
+    /**
+     * Physical connection.
+     */
+    private Connection physical;
+
+    /**
+     * Managed connection.
+     */
+    private JManagedConnection mc;
+
+    @BeforeMethod
+    public void setUp() throws SQLException {
+        ps = mock(PreparedStatement.class);
+        st = mock(Statement.class);
+        physical = mock(Connection.class);
+        when(physical.createStatement()).thenReturn(st);
+        when(physical.createStatement(anyInt(), anyInt())).thenReturn(st);
+        mc = mock(JManagedConnection.class);
+        when(mc.isAutoParameterize()).thenReturn(true);
+        when(mc.prepareStatement(any(StatementKey.class))).thenReturn(
+                new JStatement(ps, mc, new StatementKey(PARAMETERIZED_SQL)));
+    }
+
+    @Test
+    public void testLiteralsAreBound() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(ps.executeQuery()).thenReturn(rs);
+
+        assertSame(newStatement().executeQuery(SQL), rs);
+        verify(ps).setLong(1, 42);
+        verify(physical, never()).createStatement(anyInt(), anyInt());
+    }
+
+    @Test
+    public void testLiteralExecutedWhenPrepareRefused() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(mc.prepareStatement(any(StatementKey.class))).thenThrow(new SQLException("syntax error", "42601"));
+        when(st.executeQuery(SQL)).thenReturn(rs);
+
+        assertSame(newStatement().executeQuery(SQL), rs);
+        verify(mc).setPlainOnly(PARAMETERIZED_SQL);
+    }
+
+    @Test
+    public void testLiteralExecutedWhenExecutionRefused() throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(ps.executeQuery()).thenThrow(new SQLException("could not determine data type of parameter $1", "42P18"));
+        when(st.executeQuery(SQL)).thenReturn(rs);
+
+        assertSame(newStatement().executeQuery(SQL), rs);
+        verify(st).executeQuery(SQL);
+        verify(mc).setPlainOnly(PARAMETERIZED_SQL);
+    }
+
+    @Test
+    public void testErrorOfLiteralSqlIsThrown() throws SQLException {
+        SQLException refused = new SQLException("duplicate key", "23505");
+        SQLException error = new SQLException("duplicate key", "23505");
+        when(ps.executeUpdate()).thenThrow(refused);
+        when(st.executeUpdate(SQL)).thenThrow(error);
+
+        try {
+            newStatement().executeUpdate(SQL);
+            fail("no error");
+        } catch (SQLException e) {
+            assertSame(e, error);
+            assertSame(e.getSuppressed()[0], refused);
+        }
+        // Not a matter of bind variables: still parameterized
+        verify(mc, never()).setPlainOnly(anyString());
+    }
+
+    @Test
+    public void testFatalErrorIsNotRetried() throws SQLException {
+        SQLException lost = new SQLException("connection reset", "08006");
+        when(mc.isFatal(lost)).thenReturn(true);
+        when(ps.executeQuery()).thenThrow(lost);
+
+        try {
+            newStatement().executeQuery(SQL);
+            fail("no error");
+        } catch (SQLException e) {
+            assertSame(e, lost);
+        }
+        verify(mc).notifyStatementError(lost);
+        verify(physical, never()).createStatement(anyInt(), anyInt());
+    }
+
+    @Test
+    public void testPhysicalStatementCreatedAtOnceWhenNotParameterized() throws SQLException {
+        when(mc.isAutoParameterize()).thenReturn(false);
+        JConnection connection = new JConnection(mc, physical);
+
+        Statement statement = connection.createStatement();
+        assertTrue(statement instanceof JReportingStatement);
+        verify(physical).createStatement();
+        assertSame(statement.getConnection(), connection);
+
+        SQLException error = new SQLException("syntax error", "42601");
+        when(st.executeUpdate(SQL)).thenThrow(error);
+        try {
+            statement.executeUpdate(SQL);
+            fail("no error");
+        } catch (SQLException e) {
+            assertSame(e, error);
+        }
+        verify(mc).notifyStatementError(error);
+        verify(mc, never()).prepareStatement(any(StatementKey.class));
+    }
+
+    @Test
+    public void testCreateStatementFailsOnDeadConnection() throws SQLException {
+        when(mc.isAutoParameterize()).thenReturn(false);
+        SQLException lost = new SQLException("connection closed", "08003");
+        when(physical.createStatement()).thenThrow(lost);
+
+        try {
+            new JConnection(mc, physical).createStatement();
+            fail("no error");
+        } catch (SQLException e) {
+            assertSame(e, lost);
+        }
+        verify(mc).notifyError(lost);
+    }
+
+    /**
+     * @return a statement parameterizing its SQL.
+     */
+    private JPlainStatement newStatement() {
+        return new JPlainStatement(mock(Connection.class), mc, physical, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, StatementKey.UNSET);
+    }
+}
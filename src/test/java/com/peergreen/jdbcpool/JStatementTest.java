@@ -0,0 +1,316 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that a reused statement is reset: only the properties changed by
+ * the previous user, each one to the value read from the driver.
+ */
+public class JStatementTest {
+
+    /**
+     * SQL of the statements.
+     */
+    private static final String SQL = "select 1";
+
+    /**
+     * Physical statement.
+     */
+    private PreparedStatement ps;
+
+    /**
+     * Statement given to the user.
+     */
+    private JStatement statement;
+
+    @BeforeMethod
+    public void setUp() {
+        ps = mock(PreparedStatement.class);
+        statement = new JStatement(ps, mock(JManagedConnection.class), new StatementKey(SQL));
+    }
+
+    @Test
+    public void testUnchangedStatementIsNotReset() throws SQLException {
+        statement.reuse();
+        verifyZeroInteractions(ps);
+    }
+
+    @Test
+    public void testParametersAreCleared() throws SQLException {
+        statement.setInt(1, 1);
+        statement.setString(2, "a");
+        statement.reuse();
+        verify(ps).clearParameters();
+        verifyOthersKept("parameters");
+    }
+
+    @Test
+    public void testWarningsAreClearedAfterExecution() throws SQLException {
+        statement.executeQuery();
+        statement.reuse();
+        verify(ps).clearWarnings();
+        verifyOthersKept("warnings");
+    }
+
+    @Test
+    public void testBatchIsCleared() throws SQLException {
+        statement.addBatch();
+        statement.reuse();
+        verify(ps).clearBatch();
+        verifyOthersKept("batch");
+    }
+
+    @Test
+    public void testFetchDirectionIsReset() throws SQLException {
+        when(ps.getFetchDirection()).thenReturn(ResultSet.FETCH_UNKNOWN);
+        statement.setFetchDirection(ResultSet.FETCH_REVERSE);
+        statement.reuse();
+        verify(ps).setFetchDirection(ResultSet.FETCH_UNKNOWN);
+        verifyOthersKept("fetchDirection");
+    }
+
+    @Test
+    public void testFetchSizeIsReset() throws SQLException {
+        when(ps.getFetchSize()).thenReturn(10);
+        statement.setFetchSize(100);
+        statement.reuse();
+        verify(ps).setFetchSize(10);
+        verifyOthersKept("fetchSize");
+    }
+
+    @Test
+    public void testMaxFieldSizeIsReset() throws SQLException {
+        when(ps.getMaxFieldSize()).thenReturn(256);
+        statement.setMaxFieldSize(1024);
+        statement.reuse();
+        verify(ps).setMaxFieldSize(256);
+        verifyOthersKept("maxFieldSize");
+    }
+
+    @Test
+    public void testMaxRowsIsReset() throws SQLException {
+        when(ps.getMaxRows()).thenReturn(50);
+        statement.setMaxRows(10);
+        statement.reuse();
+        verify(ps).setMaxRows(50);
+        verifyOthersKept("maxRows");
+    }
+
+    @Test
+    public void testQueryTimeoutIsReset() throws SQLException {
+        when(ps.getQueryTimeout()).thenReturn(30);
+        statement.setQueryTimeout(5);
+        statement.reuse();
+        verify(ps).setQueryTimeout(30);
+        verifyOthersKept("queryTimeout");
+    }
+
+    @Test
+    public void testEscapeProcessingIsReset() throws SQLException {
+        statement.setEscapeProcessing(false);
+        statement.reuse();
+        verify(ps).setEscapeProcessing(true);
+        verifyOthersKept("escapeProcessing");
+    }
+
+    @Test
+    public void testInitialValueIsReadOnce() throws SQLException {
+        when(ps.getFetchSize()).thenReturn(10);
+        statement.setFetchSize(100);
+        statement.setFetchSize(200);
+        statement.reuse();
+        statement.setFetchSize(300);
+        statement.reuse();
+        verify(ps, times(1)).getFetchSize();
+        verify(ps, times(2)).setFetchSize(10);
+    }
+
+    @Test
+    public void testResetOnlyOnce() throws SQLException {
+        when(ps.getMaxRows()).thenReturn(50);
+        statement.setMaxRows(10);
+        statement.reuse();
+        statement.reuse();
+        verify(ps, times(1)).setMaxRows(50);
+    }
+
+    @Test
+    public void testNotPoolableIsNotReusable() throws SQLException {
+        assertTrue(statement.isReusable());
+        statement.setPoolable(false);
+        assertFalse(statement.isReusable());
+    }
+
+    @Test
+    public void testCursorNameIsNotReusable() throws SQLException {
+        statement.setCursorName("c1");
+        assertFalse(statement.isReusable());
+    }
+
+    @Test
+    public void testCloseOnCompletionIsNotReusable() throws SQLException {
+        statement.closeOnCompletion();
+        assertFalse(statement.isReusable());
+    }
+
+    @Test
+    public void testClosedStatementIsReused() throws SQLException {
+        Connection physical = physicalConnection();
+        JManagedConnection mc = new JManagedConnection(physical, pool());
+
+        PreparedStatement first = mc.prepareStatement(SQL);
+        first.setMaxRows(10);
+        first.close();
+        PreparedStatement second = mc.prepareStatement(SQL);
+
+        assertSame(second, first);
+        verify(physical, times(1)).prepareStatement(anyString(), anyInt(), anyInt());
+        verify(ps, never()).close();
+    }
+
+    @Test
+    public void testNotPoolableStatementIsRemoved() throws SQLException {
+        checkRemoved(new Change() {
+            @Override
+            public void apply(final PreparedStatement statement) throws SQLException {
+                statement.setPoolable(false);
+            }
+        });
+    }
+
+    @Test
+    public void testStatementWithCursorNameIsRemoved() throws SQLException {
+        checkRemoved(new Change() {
+            @Override
+            public void apply(final PreparedStatement statement) throws SQLException {
+                statement.setCursorName("c1");
+            }
+        });
+    }
+
+    /**
+     * A change of a statement made by its user.
+     */
+    private interface Change {
+
+        /**
+         * @param statement the statement to change
+         * @throws SQLException if the change fails
+         */
+        void apply(PreparedStatement statement) throws SQLException;
+    }
+
+    /**
+     * Checks that a statement changed so that it can't be reused is closed
+     * physically and removed from the cache.
+     * @param change the change of the statement
+     * @throws SQLException if the statement fails
+     */
+    private void checkRemoved(final Change change) throws SQLException {
+        Connection physical = physicalConnection();
+        JManagedConnection mc = new JManagedConnection(physical, pool());
+
+        PreparedStatement first = mc.prepareStatement(SQL);
+        change.apply(first);
+        first.close();
+        verify(ps).close();
+        assertFalse(mc.isCached(new StatementKey(SQL)));
+
+        PreparedStatement second = mc.prepareStatement(SQL);
+        assertNotSame(second, first);
+        verify(physical, times(2)).prepareStatement(anyString(), anyInt(), anyInt());
+    }
+
+    /**
+     * @return a physical connection preparing the statement of the test, then
+     *         other ones.
+     * @throws SQLException never
+     */
+    private Connection physicalConnection() throws SQLException {
+        Connection physical = mock(Connection.class);
+        when(physical.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(ps,
+                mock(PreparedStatement.class));
+        return physical;
+    }
+
+    /**
+     * @return a pool with a statement cache.
+     */
+    private static ConnectionManager pool() {
+        ConnectionManager pool = mock(ConnectionManager.class);
+        when(pool.getPstmtMax()).thenReturn(10);
+        when(pool.getPstmtAdmission()).thenReturn(1);
+        when(pool.getSqlRegistry()).thenReturn(new SqlRegistry());
+        return pool;
+    }
+
+    /**
+     * Checks that the properties other than the changed one are not reset.
+     * @param changed the changed property
+     * @throws SQLException never
+     */
+    private void verifyOthersKept(final String changed) throws SQLException {
+        if (!"parameters".equals(changed)) {
+            verify(ps, never()).clearParameters();
+        }
+        if (!"warnings".equals(changed)) {
+            verify(ps, never()).clearWarnings();
+        }
+        if (!"batch".equals(changed)) {
+            verify(ps, never()).clearBatch();
+        }
+        if (!"fetchDirection".equals(changed)) {
+            verify(ps, never()).setFetchDirection(anyInt());
+        }
+        if (!"fetchSize".equals(changed)) {
+            verify(ps, never()).setFetchSize(anyInt());
+        }
+        if (!"maxFieldSize".equals(changed)) {
+            verify(ps, never()).setMaxFieldSize(anyInt());
+        }
+        if (!"maxRows".equals(changed)) {
+            verify(ps, never()).setMaxRows(anyInt());
+        }
+        if (!"queryTimeout".equals(changed)) {
+            verify(ps, never()).setQueryTimeout(anyInt());
+        }
+        if (!"escapeProcessing".equals(changed)) {
+            verify(ps, never()).setEscapeProcessing(anyBoolean());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that a keeper stopped and started again runs a single chain of
+ * maintenance runs.
+ */
+public class PoolKeeperTest {
+
+    @Test
+    public void testRunInProgressNotRescheduledAfterRestart() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        ConnectionManager pool = mock(ConnectionManager.class);
+        when(pool.getSamplingPeriod()).thenReturn(1);
+        when(pool.getIdleCheckPeriod()).thenReturn(3600);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws InterruptedException {
+                if (runs.incrementAndGet() == 1) {
+                    entered.countDown();
+                    release.await();
+                }
+                return null;
+            }
+        }).when(pool).adjust();
+
+        PoolKeeper keeper = new PoolKeeper(pool);
+        keeper.start();
+        try {
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            // Restarted while the first run is in progress
+            keeper.stop();
+            keeper.start();
+            release.countDown();
+
+            // One run of the new scheduler within 1.5 period, not two
+            Thread.sleep(1500);
+            assertEquals(runs.get(), 2);
+        } finally {
+            keeper.stop();
+        }
+    }
+}
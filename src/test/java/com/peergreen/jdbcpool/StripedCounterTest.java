@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Peergreen
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.peergreen.jdbcpool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the counter of the statement uses loses no increment when the
+ * threads increment it at the same time, and ages it.
+ */
+public class StripedCounterTest {
+
+    /**
+     * Increments made by each thread.
+     */
+    private static final int INCREMENTS = 100000;
+
+    @Test
+    public void testIncrement() {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.increment();
+        assertEquals(counter.get(), 2);
+    }
+
+    @Test(timeOut = 60000)
+    public void testConcurrentIncrements() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int n = 0; n < INCREMENTS; n++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(counter.get(), threads.length * INCREMENTS);
+
+        // Each cell is halved: at most one use lost per cell
+        long halved = counter.halve();
+        assertEquals(counter.get(), halved);
+        assertTrue(halved <= threads.length * INCREMENTS / 2);
+        assertTrue(halved >= threads.length * INCREMENTS / 2 - threads.length);
+    }
+
+    @Test
+    public void testHalveToZero() {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        assertEquals(counter.halve(), 0);
+        assertEquals(counter.get(), 0);
+    }
+}